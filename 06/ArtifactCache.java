@@ -0,0 +1,100 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * On-disk cache of the artifacts of the TestFarm stages: sets of named files, such as
+ * the .asm file of a translated folder or the .xml files of an analyzed one. An entry is
+ * keyed by the SHA-256 hash of everything the stage reads (see key()), and stored the way
+ * AssemblyCache stores its entries: written to a temporary file and atomically renamed,
+ * so several farms can share one directory. Nothing is evicted; delete the directory to
+ * clear the cache.
+ */
+public class ArtifactCache {
+    private final Path directory;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public ArtifactCache(Path directory) throws IOException {
+        this.directory = directory;
+        Files.createDirectories(directory);
+    }
+
+    /** Hashes the given parts, each with its length so that they cannot run together. */
+    public static String key(byte[]... parts) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            for (byte[] part : parts) {
+                digest.update(Integer.toString(part.length).getBytes());
+                digest.update((byte) ':');
+                digest.update(part);
+            }
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /** Returns the files stored under `key`, or null on a miss. */
+    public Map<String, byte[]> get(String key) throws IOException {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(directory.resolve(key));
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        Map<String, byte[]> files = new TreeMap<>();
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            String name = in.readUTF();
+            byte[] content = new byte[in.readInt()];
+            in.readFully(content);
+            files.put(name, content);
+        }
+        return files;
+    }
+
+    public void put(String key, Map<String, byte[]> files) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(files.size());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            out.writeUTF(file.getKey());
+            out.writeInt(file.getValue().length);
+            out.write(file.getValue());
+        }
+        Path temporary = Files.createTempFile(directory, "entry", ".tmp");
+        try {
+            Files.write(temporary, bytes.toByteArray());
+            Files.move(temporary, directory.resolve(key), StandardCopyOption.ATOMIC_MOVE,
+                       StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    public String report() {
+        int hitCount = hits.get();
+        int total = hitCount + misses.get();
+        return "Cache: " + hitCount + " hits, " + (total - hitCount) + " misses" +
+               (total > 0 ? " (" + (100 * hitCount / total) + "% hit rate)" : "") + ".";
+    }
+}
@@ -0,0 +1,186 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * A faster alternative to Parser for large programs. The whole .asm file is read
+ * into one byte array and scanned forward a single time. Each line is compacted
+ * in place (whitespace and comments dropped), so the current instruction is
+ * always the contiguous range [start(), end()) of buffer() and its fields are
+ * returned as offsets into that range instead of new strings.
+ *
+ * Outside comments, only ASCII is accepted; a syntax error is reported with its line.
+ */
+public class AsmScanner {
+    /** An error in the source, on the given line of the scanned range. */
+    public static class SyntaxError extends IllegalArgumentException {
+        private static final long serialVersionUID = 1L;
+        private final int line;
+        private final String detail;
+
+        public SyntaxError(int line, String detail) {
+            super("Line " + line + ": " + detail);
+            this.line = line;
+            this.detail = detail;
+        }
+
+        public int line() {
+            return line;
+        }
+
+        public String detail() {
+            return detail;
+        }
+    }
+
+    private final byte[] buffer;
+    private final int limit;
+    private int position;
+    private int lineNumber;
+    private int start;
+    private int end;
+    private Parser.INSTRUCTION_TYPE type;
+
+    public AsmScanner(String fileName) throws IOException {
+        this(Files.readAllBytes(Paths.get(fileName)));
+    }
+
+    public AsmScanner(byte[] buffer) {
+        this(buffer, 0, buffer.length);
+    }
+
+    public AsmScanner(byte[] buffer, int from, int to) {
+        this.buffer = buffer;
+        this.position = from;
+        this.limit = to;
+    }
+
+    /**
+     * Upper bound for the number of label declarations in the remaining input: the
+     * number of '(' bytes, found by a plain scan before any parsing is done.
+     */
+    public int countLabels() {
+        int count = 0;
+        for (int i = position; i < limit; i++) {
+            if (buffer[i] == '(') {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Moves to the next instruction, skipping blank lines and comments.
+     * Returns false when the end of the input has been reached.
+     */
+    public boolean advance() {
+        while (position < limit) {
+            lineNumber++;
+            int lineStart = position;
+            int out = position;
+            boolean inComment = false;
+
+            while (position < limit) {
+                byte b = buffer[position++];
+                if (b == '\n') {
+                    break;
+                }
+                if (inComment || (b & 0xFF) <= ' ') {
+                    continue;
+                }
+                if (b < 0 || b == 0x7F) {
+                    throw new SyntaxError(lineNumber, String.format(
+                        "Invalid byte 0x%02X (not ASCII)", b & 0xFF));
+                }
+                if (b == '/' && position < limit && buffer[position] == '/') {
+                    inComment = true;
+                    continue;
+                }
+                buffer[out++] = b;
+            }
+
+            // Blank out what is left of the line, so that the same range can be
+            // scanned again (see ChunkedAssembler):
+            for (int i = out; i < position && buffer[i] != '\n'; i++) {
+                buffer[i] = ' ';
+            }
+
+            if (out > lineStart) {
+                start = lineStart;
+                end = out;
+                if (buffer[start] == '@') {
+                    type = Parser.INSTRUCTION_TYPE.A_INSTRUCTION;
+                } else if (buffer[start] == '(') {
+                    type = Parser.INSTRUCTION_TYPE.L_INSTRUCTION;
+                } else {
+                    type = Parser.INSTRUCTION_TYPE.C_INSTRUCTION;
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Line of the current instruction, counted from 1 at the start of the scanned range;
+    // once advance() has returned false, the number of lines in the range:
+    public int lineNumber() {
+        return lineNumber;
+    }
+
+    public Parser.INSTRUCTION_TYPE instructionType() {
+        return type;
+    }
+
+    public byte[] buffer() {
+        return buffer;
+    }
+
+    public int start() {
+        return start;
+    }
+
+    public int end() {
+        return end;
+    }
+
+    // Offsets of the symbol of an A- or L-instruction (without '@' or parentheses):
+    public int symbolStart() {
+        return start + 1;
+    }
+
+    public int symbolEnd() {
+        return (type == Parser.INSTRUCTION_TYPE.L_INSTRUCTION) ? end - 1 : end;
+    }
+
+    public boolean isNumericSymbol() {
+        int from = symbolStart();
+        int to = symbolEnd();
+        if (from == to) {
+            return false;
+        }
+        for (int i = from; i < to; i++) {
+            if (buffer[i] < '0' || buffer[i] > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // The value of a numeric symbol, which must fit in the 15 bits of an A-instruction:
+    public int numericSymbol() {
+        int value = 0;
+        for (int i = symbolStart(); i < symbolEnd(); i++) {
+            value = value * 10 + (buffer[i] - '0');
+            if (value > 32767) {
+                throw new SyntaxError(lineNumber, "Value out of range (0-32767): " + symbol());
+            }
+        }
+        return value;
+    }
+
+    public String symbol() {
+        return new String(buffer, symbolStart(), symbolEnd() - symbolStart(),
+                          StandardCharsets.US_ASCII);
+    }
+}
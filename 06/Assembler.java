@@ -1,109 +1,360 @@
 import java.io.File;
-import java.io.BufferedWriter;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 public class Assembler {
+    // Files at least this large are split into chunks when more threads are available:
+    private static final long CHUNKED_THRESHOLD = 1 << 20;
 
-    private static String convertToBinary(int n) {
-        StringBuilder result = new StringBuilder();
+    // Part of every cache key; change it whenever the produced output changes.
+    public static final String VERSION = "2";
 
-        while (n > 0) {
-            String bit = Integer.toString(n % 2);
-            result.append(bit);
-            n /= 2;
-        }
-        result.append("0".repeat(16 - result.length()));
-        return result.reverse().toString();
+    private final boolean binary;
+    private final boolean optimize;
+    private final int threads;
+    private final AssemblyCache cache;
+    private final AssemblerMetrics metrics;
+    private final boolean sourceMaps;
+
+    /**
+     * An assembler holds only its options, so one instance can be reused for any
+     * number of programs, also from several threads at once.
+     * binary: write packed .hackbin words instead of .hack text;
+     * optimize: run the PeepholeOptimizer over the program before it is written;
+     * threads: number of threads used to assemble a large source in chunks;
+     * cache: where assembleFile() looks up and stores its output (may be null);
+     * metrics: collects counters and phase timings (may be null, which costs nothing);
+     * sourceMaps: assembleFile() also writes the .asm line of every ROM address into a
+     * SourceMap sidecar (name.hackmap, or name.hackbinmap for a binary ROM).
+     */
+    public Assembler(boolean binary, boolean optimize, int threads, AssemblyCache cache,
+                     AssemblerMetrics metrics, boolean sourceMaps) {
+        this.binary = binary;
+        this.optimize = optimize;
+        this.threads = threads;
+        this.cache = cache;
+        this.metrics = metrics;
+        this.sourceMaps = sourceMaps;
+    }
+
+    public Assembler(boolean binary, boolean optimize, int threads, AssemblyCache cache,
+                     AssemblerMetrics metrics) {
+        this(binary, optimize, threads, cache, metrics, false);
     }
 
-    private static void initializeSymbolTable(Map<String, Integer> symbolTable) {
-        for (int i = 0; i <= 15; i++) {
-            symbolTable.put("R" + i, i);
-        }
-        symbolTable.put("SCREEN", 16384);
-        symbolTable.put("KBD", 24576);
-        symbolTable.put("SP", 0);
-        symbolTable.put("LCL", 1);
-        symbolTable.put("ARG", 2);
-        symbolTable.put("THIS", 3);
-        symbolTable.put("THAT", 4);
+    public Assembler(boolean binary, int threads) {
+        this(binary, false, threads, null, null);
     }
 
+    public Assembler() {
+        this(false, 1);
+    }
+
+    // Usage: java Assembler <file.asm | directory> [--binary] [--optimize] [--threads N]
+    //                       [--cache DIR] [--cache-size MB] [--metrics FILE] [--source-map]
+    // With --binary each word is written as 2 big-endian bytes into a .hackbin file.
+    // With --optimize redundant A-instructions and stores are removed before writing.
+    // With --threads N (N > 1) the files of a directory are assembled in parallel, and
+    // a single large file is split into chunks that are assembled in parallel.
+    // With --cache DIR unchanged files are not assembled again; their output is copied
+    // from DIR, which is kept below --cache-size megabytes (default 64).
+    // With --metrics FILE counters and phase timings are written to FILE at the end, as
+    // JSON or, if FILE ends in .prom, in the Prometheus text format.
+    // With --source-map the .asm line of every ROM address is written to name.hackmap
+    // (name.hackbinmap with --binary).
     public static void main(String[] args) throws IOException {
         File input = new File(args[0]);
+        boolean binary = false;
+        boolean optimize = false;
+        int threads = 1;
+        String cacheDirectory = null;
+        long cacheMegabytes = 64;
+        String metricsFile = null;
+        boolean sourceMaps = false;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--binary")) {
+                binary = true;
+            } else if (args[i].equals("--optimize")) {
+                optimize = true;
+            } else if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--cache") && i + 1 < args.length) {
+                cacheDirectory = args[++i];
+            } else if (args[i].equals("--cache-size") && i + 1 < args.length) {
+                cacheMegabytes = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--metrics") && i + 1 < args.length) {
+                metricsFile = args[++i];
+            } else if (args[i].equals("--source-map")) {
+                sourceMaps = true;
+            } else {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+        AssemblyCache cache = null;
+        if (cacheDirectory != null) {
+            cache = new AssemblyCache(Paths.get(cacheDirectory), cacheMegabytes << 20);
+        }
+        AssemblerMetrics metrics = (metricsFile != null) ? new AssemblerMetrics() : null;
+
         if (input.isFile()) {
-            assembleFile(input.getPath());
+            new Assembler(binary, optimize, threads, cache, metrics, sourceMaps)
+                .assembleFile(input.getPath());
         } else if (input.isDirectory()) {
             File[] files = input.listFiles((dir, name) -> name.toLowerCase().endsWith(".asm"));
-            if (files != null) {
+            Assembler assembler = new Assembler(binary, optimize, 1, cache, metrics, sourceMaps);
+            if (files != null && threads > 1) {
+                assembler.assembleInParallel(files, threads);
+            } else if (files != null) {
                 for (File file : files) {
-                    assembleFile(file.getPath());
+                    assembler.assembleFile(file.getPath());
                 }
             }
         } else {
             System.out.println("The provided path is neither a file nor a directory.");
         }
+
+        if (cache != null) {
+            cache.evict();
+            System.out.println(cache.report());
+        }
+        if (metrics != null) {
+            metrics.write(metricsFile);
+        }
+    }
+
+    // Every file has its own symbol table and output file, so the files of a directory
+    // can be assembled independently on a fixed-size pool:
+    private void assembleInParallel(File[] files, int poolThreads) {
+        long startTime = System.nanoTime();
+        int poolSize = Math.max(1, Math.min(poolThreads, files.length));
+        ExecutorService pool = Executors.newFixedThreadPool(poolSize);
+        List<Future<?>> results = new ArrayList<>();
+        for (File file : files) {
+            results.add(pool.submit(() -> {
+                assembleFile(file.getPath());
+                return null;
+            }));
+        }
+        pool.shutdown();
+
+        int failed = 0;
+        for (int i = 0; i < files.length; i++) {
+            try {
+                results.get(i).get();
+            } catch (ExecutionException e) {
+                failed++;
+                System.err.println("Error assembling " + files[i].getName() + ": " +
+                                   e.getCause().getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        long elapsed = (System.nanoTime() - startTime) / 1_000_000;
+        System.out.println("Assembled " + (files.length - failed) + " of " + files.length +
+                           " files (" + failed + " failed) in " + elapsed + " ms using " +
+                           poolSize + " threads.");
+    }
+
+    /**
+     * Assembles `name.asm` into `name.hack` (or `name.hackbin`) next to it. With source
+     * maps, the cache is not used, since it only holds the program.
+     */
+    public void assembleFile(String assemblyFile) throws IOException {
+        String hackFile = assemblyFile.substring(0, assemblyFile.lastIndexOf(".asm"))
+                          + HackWriter.extension(binary);
+        byte[] source = Files.readAllBytes(Paths.get(assemblyFile));
+        String cacheKey = null;
+        if (cache != null && !sourceMaps) {
+            cacheKey = AssemblyCache.key(source, binary, optimize);
+            if (cache.restore(cacheKey, Paths.get(hackFile))) {
+                return;
+            }
+        }
+        int[] program;
+        if (sourceMaps) {
+            SourceMap sourceMap = new SourceMap();
+            program = assemble(source, optimize, metrics, sourceMap,
+                               Paths.get(assemblyFile).getFileName().toString());
+            sourceMap.write(SourceMap.sidecar(hackFile));
+        } else {
+            program = assembleBytes(source);
+        }
+
+        long outputStart = (metrics != null) ? System.nanoTime() : 0;
+        HackWriter writer = new HackWriter(hackFile, binary);
+        try {
+            writer.write(program, program.length);   // a failure must not reach the cache
+        } finally {
+            writer.close();
+        }
+        if (metrics != null) {
+            metrics.addOutput(System.nanoTime() - outputStart);
+        }
+        if (cacheKey != null) {
+            cache.store(cacheKey, Paths.get(hackFile));
+        }
     }
 
-    private static void assembleFile(String assemblyFile) throws IOException {
-        String hackFile = assemblyFile.substring(0, assemblyFile.lastIndexOf(".asm")) + ".hack";
+    /** Assembles the given assembly source and returns one instruction word per entry. */
+    public int[] assemble(CharSequence source) throws IOException {
+        byte[] bytes = new byte[source.length()];
+        for (int i = 0; i < bytes.length; i++) {
+            char c = source.charAt(i);
+            bytes[i] = (c < 128) ? (byte) c : (byte) '?';
+        }
+        return assembleBytes(bytes);
+    }
+
+    /** Assembles everything that can be read from `source` (the reader is not closed). */
+    public int[] assemble(Reader source) throws IOException {
+        byte[] bytes = new byte[8192];
+        int length = 0;
+        char[] chars = new char[8192];
+        int count;
+        while ((count = source.read(chars)) != -1) {
+            if (length + count > bytes.length) {
+                bytes = Arrays.copyOf(bytes, Math.max(2 * bytes.length, length + count));
+            }
+            for (int i = 0; i < count; i++) {
+                bytes[length++] = (chars[i] < 128) ? (byte) chars[i] : (byte) '?';
+            }
+        }
+        return assembleBytes(Arrays.copyOf(bytes, length));
+    }
+
+    /**
+     * Assembles everything that can be read from `source` and writes the program to
+     * `out` in the format chosen for this assembler. Neither stream is closed.
+     */
+    public void assemble(Reader source, OutputStream out) throws IOException {
+        int[] program = assemble(source);
+        HackWriter writer = new HackWriter(out, binary);
+        writer.write(program, program.length);
+        writer.flush();
+    }
+
+    // The source buffer is modified while it is scanned. The optimizer needs to know
+    // which words are label addresses, which only the single-pass assembler records.
+    private int[] assembleBytes(byte[] source) throws IOException {
+        if (threads > 1 && source.length >= CHUNKED_THRESHOLD && !optimize) {
+            try {
+                return ChunkedAssembler.assemble(source, threads, metrics);
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IOException(e);
+            }
+        }
+        return assemble(source, optimize, metrics, null, null);
+    }
+
+    // Single pass over the source: instructions are encoded straight into an int array.
+    // An A-instruction whose symbol is not yet in the table is left as a placeholder and
+    // recorded as a fixup. Once the whole file has been read, every fixup is either a
+    // label defined further down or a variable, allocated in order of first use.
+    // If sourceMap is not null, it gets the line in `sourceName` of every instruction.
+    private static int[] assemble(byte[] source, boolean optimize, AssemblerMetrics metrics,
+                                  SourceMap sourceMap, String sourceName) {
+        long encodeStart = (metrics != null) ? System.nanoTime() : 0;
+        int[] program = new int[1024];
+        // Only for the optimizer: words that hold ROM addresses and addresses of labels.
+        BitSet romAddresses = optimize ? new BitSet() : null;
+        BitSet labelTargets = optimize ? new BitSet() : null;
         int currentLineNumber = 0;
-        int variableCount = 16;
-        Map<String, Integer> symbolTable = new HashMap<>();
+        int labelCount = 0;
+        // Each fixup is a triple: instruction index, symbol start and symbol end.
+        int[] fixups = new int[3 * 64];
+        int fixupCount = 0;
 
-        initializeSymbolTable(symbolTable);
+        AsmScanner scanner = new AsmScanner(source);
+        SymbolTable symbolTable = SymbolTable.withPredefinedSymbols(scanner.countLabels());
+        while (scanner.advance()) {
+            Parser.INSTRUCTION_TYPE type = scanner.instructionType();
 
-        // First pass to store the line numbers associated to each label:
-        Parser firstPassParser = new Parser(assemblyFile);
-        while (firstPassParser.hasMoreLines()) {
-            if (firstPassParser.instructionType() == Parser.INSTRUCTION_TYPE.L_INSTRUCTION) {
-                symbolTable.put(firstPassParser.symbol(), currentLineNumber);
-            } else {
-                currentLineNumber++;
+            if (type == Parser.INSTRUCTION_TYPE.L_INSTRUCTION) {
+                symbolTable.defineLabel(source, scanner.symbolStart(), scanner.symbolEnd(),
+                                        currentLineNumber);
+                labelCount++;
+                if (optimize) {
+                    labelTargets.set(currentLineNumber);
+                }
+                continue;
+            }
+            if (currentLineNumber == program.length) {
+                program = Arrays.copyOf(program, 2 * program.length);
             }
-            firstPassParser.advance();
-        }
-        
-        // Second pass to actually write the binary code from the assembly program:
-        Parser parser = new Parser(assemblyFile);
-        try(BufferedWriter writer = new BufferedWriter(new FileWriter(hackFile))) {
-
-            while (parser.hasMoreLines()) {
-                Parser.INSTRUCTION_TYPE type = parser.instructionType();
-                String code = null;
-
-                if (type == Parser.INSTRUCTION_TYPE.A_INSTRUCTION) {
-                    String symbol = parser.symbol();
-                    int address;
-                    if (symbol.matches("\\d+")) {
-                        // non-symbolic address:
-                        address = Integer.parseInt(symbol);
-                    } else if (!symbolTable.containsKey(symbol)) {
-                        // symbol doesn't yet exist in the table, allocate a new address:
-                        address = variableCount++;
-                        symbolTable.put(symbol, address);
-                    } else {
-                        address = symbolTable.get(symbol);
-                    }
-                    code = convertToBinary(address);
+
+            int word = encodeInstruction(scanner, symbolTable);
+            if (word != -1) {
+                program[currentLineNumber] = word;
+                if (optimize && type == Parser.INSTRUCTION_TYPE.A_INSTRUCTION &&
+                    symbolTable.isLabel(source, scanner.symbolStart(), scanner.symbolEnd())) {
+                    romAddresses.set(currentLineNumber);
                 }
-                else if (type == Parser.INSTRUCTION_TYPE.C_INSTRUCTION) {
-                    code = "111" + Code.comp(parser.comp()) +
-                                   Code.dest(parser.dest()) +
-                                   Code.jump(parser.jump());
+            } else {
+                // forward label reference or new variable, decided at the end:
+                if (3 * fixupCount == fixups.length) {
+                    fixups = Arrays.copyOf(fixups, 2 * fixups.length);
                 }
+                fixups[3 * fixupCount] = currentLineNumber;
+                fixups[3 * fixupCount + 1] = scanner.symbolStart();
+                fixups[3 * fixupCount + 2] = scanner.symbolEnd();
+                fixupCount++;
+            }
+            if (sourceMap != null) {
+                sourceMap.add(sourceName, scanner.lineNumber());
+            }
+            currentLineNumber++;
+        }
 
-                if (code != null) {
-                    writer.write(code);
-                    writer.newLine();
-                }
-                parser.advance();
+        // Backpatch the fixups; symbols that never became labels are variables:
+        long labelStart = (metrics != null) ? System.nanoTime() : 0;
+        for (int i = 0; i < fixupCount; i++) {
+            program[fixups[3 * i]] = symbolTable.resolveVariable(source, fixups[3 * i + 1],
+                                                                 fixups[3 * i + 2]);
+            if (optimize && symbolTable.isLabel(source, fixups[3 * i + 1], fixups[3 * i + 2])) {
+                romAddresses.set(fixups[3 * i]);
+            }
+        }
+        if (metrics != null) {
+            long end = System.nanoTime();
+            metrics.addFile(scanner.lineNumber(), currentLineNumber, labelCount, symbolTable,
+                            end - labelStart, labelStart - encodeStart);
+        }
+        if (optimize) {
+            int[] newAddresses = PeepholeOptimizer.optimize(program, currentLineNumber,
+                                                            romAddresses, labelTargets);
+            if (sourceMap != null) {
+                sourceMap.retain(newAddresses);
+            }
+            return Arrays.copyOf(program, newAddresses[currentLineNumber]);
+        }
+        return Arrays.copyOf(program, currentLineNumber);
+    }
+
+    // Encodes the current A- or C-instruction of the scanner, or returns -1 for an
+    // A-instruction whose symbol is not (yet) in the symbol table:
+    static int encodeInstruction(AsmScanner scanner, SymbolTable symbolTable) {
+        if (scanner.instructionType() == Parser.INSTRUCTION_TYPE.A_INSTRUCTION) {
+            if (scanner.isNumericSymbol()) {
+                // non-symbolic address:
+                return scanner.numericSymbol();
             }
-        } catch (IOException e) {
-            e.printStackTrace();
+            return symbolTable.get(scanner.buffer(), scanner.symbolStart(), scanner.symbolEnd());
         }
+        return Code.encode(scanner.buffer(), scanner.start(), scanner.end());
     }
 }
\ No newline at end of file
@@ -0,0 +1,183 @@
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.Stream;
+
+/**
+ * Micro-benchmarks for the stages of the assembler, run on a synthetic program.
+ * Each stage is warmed up and then timed separately; the results are printed as a
+ * JSON array (lines per second and bytes allocated per operation), so that they can
+ * be stored and compared from build to build.
+ *
+ * Usage: java AssemblerBenchmark [--lines N] [--symbol-density D] [--iterations K]
+ *                                [--output FILE]
+ * where D (between 0 and 1) is the fraction of A-instructions that use a symbol.
+ */
+public class AssemblerBenchmark {
+    private static final String[] C_INSTRUCTIONS = {
+        "D=M", "M=D", "AM=M-1", "D=D+A", "M=M+1", "A=M", "D;JGT", "0;JMP", "D=D-M", "MD=!M"
+    };
+
+    private interface Stage {
+        void run() throws Exception;
+    }
+
+    private static com.sun.management.ThreadMXBean threadBean() {
+        return (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    }
+
+    // A program with a label every 16 lines and a mix of A- and C-instructions:
+    static String generateProgram(int lines, double symbolDensity, long seed) {
+        Random random = new Random(seed);
+        StringBuilder program = new StringBuilder();
+        int labels = 0;
+        for (int i = 0; i < lines; i++) {
+            if (i % 16 == 0) {
+                program.append("(LABEL_").append(labels++).append(")\n");
+            } else if (i % 2 == 0) {
+                if (random.nextDouble() < symbolDensity) {
+                    if (random.nextBoolean() && labels > 0) {
+                        program.append("    @LABEL_").append(random.nextInt(labels + 8));
+                    } else {
+                        program.append("    @var").append(random.nextInt(256));
+                    }
+                } else {
+                    program.append("    @").append(random.nextInt(16384));
+                }
+                program.append(i % 5 == 0 ? "    // load address\n" : "\n");
+            } else {
+                String instruction = C_INSTRUCTIONS[random.nextInt(C_INSTRUCTIONS.length)];
+                program.append("    ").append(instruction).append('\n');
+            }
+        }
+        return program.toString();
+    }
+
+    private static String measure(String name, int lines, int iterations, Stage stage)
+            throws Exception {
+        for (int i = 0; i < iterations; i++) {   // warm-up
+            stage.run();
+        }
+        long threadId = Thread.currentThread().getId();
+        long allocatedBefore = threadBean().getThreadAllocatedBytes(threadId);
+        long start = System.nanoTime();
+        for (int i = 0; i < iterations; i++) {
+            stage.run();
+        }
+        long elapsed = System.nanoTime() - start;
+        long allocated = threadBean().getThreadAllocatedBytes(threadId) - allocatedBefore;
+
+        double seconds = elapsed / 1e9;
+        return String.format("  {\"benchmark\": \"%s\", \"lines\": %d, \"iterations\": %d, " +
+                             "\"linesPerSecond\": %.0f, \"msPerOp\": %.3f, " +
+                             "\"bytesAllocatedPerOp\": %d}",
+                             name, lines, iterations, (double) lines * iterations / seconds,
+                             1000 * seconds / iterations, allocated / iterations);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int lines = 200_000;
+        double symbolDensity = 0.5;
+        int iterations = 20;
+        String output = null;
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--lines") && i + 1 < args.length) {
+                lines = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--symbol-density") && i + 1 < args.length) {
+                symbolDensity = Double.parseDouble(args[++i]);
+            } else if (args[i].equals("--iterations") && i + 1 < args.length) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--output") && i + 1 < args.length) {
+                output = args[++i];
+            } else {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+
+        byte[] source = generateProgram(lines, symbolDensity, 42)
+                        .getBytes(StandardCharsets.US_ASCII);
+        Path directory = Files.createTempDirectory("asm-benchmark");
+        Path asmFile = directory.resolve("Benchmark.asm");
+        Files.write(asmFile, source);
+        // The scanner compacts its buffer in place, so each run works on a fresh copy:
+        byte[] work = new byte[source.length];
+
+        // Offsets of all C-instructions and symbolic A-instructions, for the isolated stages:
+        AsmScanner scanner = new AsmScanner(Arrays.copyOf(source, source.length));
+        byte[] scanned = scanner.buffer();
+        int[] cInstructions = new int[2 * lines];
+        int[] symbols = new int[2 * lines];
+        int cCount = 0;
+        int symbolCount = 0;
+        while (scanner.advance()) {
+            if (scanner.instructionType() == Parser.INSTRUCTION_TYPE.C_INSTRUCTION) {
+                cInstructions[cCount++] = scanner.start();
+                cInstructions[cCount++] = scanner.end();
+            } else if (!scanner.isNumericSymbol()) {
+                symbols[symbolCount++] = scanner.symbolStart();
+                symbols[symbolCount++] = scanner.symbolEnd();
+            }
+        }
+        final int cTotal = cCount;
+        final int symbolTotal = symbolCount;
+        final int expectedLabels = lines / 16;
+        int[] sink = new int[1];
+        Assembler assembler = new Assembler();
+
+        StringBuilder json = new StringBuilder("[\n");
+        json.append(measure("parser", lines, iterations, () -> {
+            Parser parser = new Parser(asmFile.toString());
+            while (parser.hasMoreLines()) {
+                sink[0] += parser.instructionType().ordinal();
+                parser.advance();
+            }
+            parser.close();
+        })).append(",\n");
+        json.append(measure("scanner", lines, iterations, () -> {
+            System.arraycopy(source, 0, work, 0, source.length);
+            AsmScanner s = new AsmScanner(work);
+            while (s.advance()) {
+                sink[0] += s.end() - s.start();
+            }
+        })).append(",\n");
+        json.append(measure("encode", lines, iterations, () -> {
+            for (int i = 0; i < cTotal; i += 2) {
+                sink[0] += Code.encode(scanned, cInstructions[i], cInstructions[i + 1]);
+            }
+        })).append(",\n");
+        json.append(measure("symbols", lines, iterations, () -> {
+            SymbolTable table = SymbolTable.withPredefinedSymbols(expectedLabels);
+            for (int i = 0; i < symbolTotal; i += 2) {
+                sink[0] += table.resolveVariable(scanned, symbols[i], symbols[i + 1]);
+            }
+        })).append(",\n");
+        json.append(measure("assembleFile", lines, iterations, () ->
+            assembler.assembleFile(asmFile.toString())
+        )).append("\n]\n");
+
+        if (output != null) {
+            Files.write(Paths.get(output), json.toString().getBytes(StandardCharsets.UTF_8));
+        } else {
+            System.out.print(json);
+        }
+        deleteDirectory(directory);
+        if (sink[0] == 42) {
+            System.out.println();   // keeps the results above from being optimized away
+        }
+    }
+
+    private static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+}
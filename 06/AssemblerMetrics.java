@@ -0,0 +1,79 @@
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+/**
+ * Counters and phase timings collected by the assembler when instrumentation is on
+ * (Assembler --metrics FILE). The totals cover all files of a run and are written
+ * either as JSON or, for a file name ending in .prom, in the Prometheus text format.
+ *
+ * Phases: the label pass resolves labels and variables (the backpatching step of the
+ * single-pass assembler, or the counting and prefix-sum steps of ChunkedAssembler),
+ * the encode pass turns instructions into words, and output writes the words out.
+ */
+public class AssemblerMetrics {
+    private int files;
+    private long lines;
+    private long instructions;
+    private long labels;
+    private long variables;
+    private int peakSymbolTableSize;
+    private long labelPassNanos;
+    private long encodePassNanos;
+    private long outputNanos;
+
+    public synchronized void addFile(long fileLines, long fileInstructions, long fileLabels,
+                                     SymbolTable symbolTable, long labelPass, long encodePass) {
+        files++;
+        lines += fileLines;
+        instructions += fileInstructions;
+        labels += fileLabels;
+        variables += symbolTable.variableCount();
+        peakSymbolTableSize = Math.max(peakSymbolTableSize, symbolTable.size());
+        labelPassNanos += labelPass;
+        encodePassNanos += encodePass;
+    }
+
+    public synchronized void addOutput(long nanos) {
+        outputNanos += nanos;
+    }
+
+    public synchronized String toJson() {
+        return "{\n" +
+               "  \"files\": " + files + ",\n" +
+               "  \"lines\": " + lines + ",\n" +
+               "  \"instructions\": " + instructions + ",\n" +
+               "  \"labels\": " + labels + ",\n" +
+               "  \"variables\": " + variables + ",\n" +
+               "  \"peakSymbolTableSize\": " + peakSymbolTableSize + ",\n" +
+               "  \"labelPassSeconds\": " + labelPassNanos / 1e9 + ",\n" +
+               "  \"encodePassSeconds\": " + encodePassNanos / 1e9 + ",\n" +
+               "  \"outputSeconds\": " + outputNanos / 1e9 + "\n" +
+               "}\n";
+    }
+
+    public synchronized String toPrometheus() {
+        StringBuilder text = new StringBuilder();
+        appendMetric(text, "files_total", "counter", files);
+        appendMetric(text, "lines_total", "counter", lines);
+        appendMetric(text, "instructions_total", "counter", instructions);
+        appendMetric(text, "labels_total", "counter", labels);
+        appendMetric(text, "variables_total", "counter", variables);
+        appendMetric(text, "symbol_table_peak_size", "gauge", peakSymbolTableSize);
+        appendMetric(text, "label_pass_seconds", "counter", labelPassNanos / 1e9);
+        appendMetric(text, "encode_pass_seconds", "counter", encodePassNanos / 1e9);
+        appendMetric(text, "output_seconds", "counter", outputNanos / 1e9);
+        return text.toString();
+    }
+
+    private static void appendMetric(StringBuilder text, String name, String type, Number value) {
+        text.append("# TYPE hack_assembler_").append(name).append(' ').append(type).append('\n');
+        text.append("hack_assembler_").append(name).append(' ').append(value).append('\n');
+    }
+
+    public void write(String fileName) throws IOException {
+        String text = fileName.endsWith(".prom") ? toPrometheus() : toJson();
+        Files.write(Paths.get(fileName), text.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,135 @@
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * On-disk cache of assembled programs. An entry is keyed by the SHA-256 hash of the
+ * .asm content, the assembler version and the output options, so an unchanged file
+ * is restored by copying the stored output without being parsed at all.
+ *
+ * Several assembler processes can share one cache directory: entries are written to
+ * a temporary file and then atomically renamed, an entry that disappears while it is
+ * being read simply counts as a miss, and eviction runs under a file lock. Every hit
+ * refreshes the entry's modification time, and eviction removes the least recently
+ * used entries until the cache fits within its size limit.
+ */
+public class AssemblyCache {
+    private static final String LOCK_FILE = "cache.lock";
+
+    private final Path directory;
+    private final long maxBytes;
+    private final AtomicInteger hits = new AtomicInteger();
+    private final AtomicInteger misses = new AtomicInteger();
+
+    public AssemblyCache(Path directory, long maxBytes) throws IOException {
+        this.directory = directory;
+        this.maxBytes = maxBytes;
+        Files.createDirectories(directory);
+    }
+
+    public static String key(byte[] source, boolean binary, boolean optimize) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(("hack-assembler " + Assembler.VERSION + " " +
+                           HackWriter.extension(binary) + (optimize ? " optimized" : "") +
+                           "\n").getBytes());
+            digest.update(source);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest.digest()) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.append(HackWriter.extension(binary)).toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    }
+
+    /** Copies the cached output for `key` to `target`; returns false on a miss. */
+    public boolean restore(String key, Path target) throws IOException {
+        Path entry = directory.resolve(key);
+        try {
+            Files.copy(entry, target, StandardCopyOption.REPLACE_EXISTING);
+            Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (NoSuchFileException e) {
+            misses.incrementAndGet();
+            return false;
+        }
+        hits.incrementAndGet();
+        return true;
+    }
+
+    public void store(String key, Path output) throws IOException {
+        Path temporary = Files.createTempFile(directory, "entry", ".tmp");
+        try {
+            Files.copy(output, temporary, StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temporary, directory.resolve(key), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    /** Removes the least recently used entries until the cache is within its limit. */
+    public synchronized void evict() throws IOException {
+        try (FileChannel lockChannel = FileChannel.open(directory.resolve(LOCK_FILE),
+                                                        StandardOpenOption.CREATE,
+                                                        StandardOpenOption.WRITE)) {
+            FileLock lock = lockChannel.lock();
+            try {
+                evictUnlocked();
+            } finally {
+                lock.release();
+            }
+        }
+    }
+
+    private void evictUnlocked() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        Map<Path, Long> lastUsed = new HashMap<>();
+        long total = 0;
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.hack*")) {
+            for (Path entry : stream) {
+                try {
+                    total += Files.size(entry);
+                    lastUsed.put(entry, Files.getLastModifiedTime(entry).toMillis());
+                    entries.add(entry);
+                } catch (NoSuchFileException e) {
+                    // removed by another process in the meantime
+                }
+            }
+        }
+
+        entries.sort(Comparator.comparingLong(lastUsed::get));
+        for (int i = 0; i < entries.size() && total > maxBytes; i++) {
+            Path entry = entries.get(i);
+            try {
+                long size = Files.size(entry);
+                Files.delete(entry);
+                total -= size;
+            } catch (NoSuchFileException e) {
+                // removed by another process in the meantime
+            }
+        }
+    }
+
+    public String report() {
+        int hitCount = hits.get();
+        int total = hitCount + misses.get();
+        return "Cache: " + hitCount + " hits, " + (total - hitCount) + " misses" +
+               (total > 0 ? " (" + (100 * hitCount / total) + "% hit rate)" : "") + ".";
+    }
+}
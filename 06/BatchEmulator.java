@@ -0,0 +1,466 @@
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Runs many copies ("lanes") of one program together, each with its own registers and
+ * RAM, e.g. to try a program on many different inputs. Lanes that are at the same PC
+ * form a group that executes in lockstep: the instruction is fetched and dispatched once
+ * for the whole group, and its ALU operation is applied to all lanes in one tight loop
+ * over int arrays, which the JVM can vectorize.
+ *
+ * RAM is stored structure-of-arrays, word `address` of lane `lane` at index
+ * address * lanes + lane, so that a group reading or writing the same address touches
+ * consecutive words.
+ *
+ * When a conditional jump sends the lanes of a group different ways, the group splits.
+ * The lanes at the smallest PC run first, until they catch up with the next waiting lane
+ * and merge with it again (as after the two branches of an if). A lane that keeps running
+ * alone for SOLO_LIMIT cycles is moved to an Emulator of its own, which is faster for a
+ * single machine; lanes never come back from there.
+ *
+ * Every lane runs exactly as a separate Emulator would, except that only jumps to self
+ * halt a lane here (lanes moved to an Emulator also detect the other idle loops).
+ */
+public class BatchEmulator {
+    private static final int MEMORY_SIZE = 32768;
+    private static final int ADDRESS_MASK = MEMORY_SIZE - 1;
+    private static final int MAX_LANES = Integer.MAX_VALUE / MEMORY_SIZE;
+    private static final int SOLO_LIMIT = 1 << 16;
+
+    // Kinds of decoded instructions:
+    private static final byte LOAD_A = 0;
+    private static final byte COMPUTE = 1;   // C-instruction with a standard comp field
+    private static final byte GENERIC = 2;   // C-instruction with other comp bits
+    private static final byte HALT = 3;      // (L) @L, 0;JMP
+
+    // The ALU operations of the batch: those of Code.COMP_SYMBOLS, with M read as A
+    // (the decoder reads y from RAM instead of A for those):
+    private static final String[] OPERATIONS = {
+        "0", "1", "-1", "D", "A", "!D", "!A", "-D", "-A", "D+1", "A+1", "D-1", "A-1",
+        "D+A", "D-A", "A-D", "D&A", "D|A"
+    };
+
+    private final short[] program;
+    private final int lanes;
+    private final byte[] kinds = new byte[MEMORY_SIZE];
+    private final short[] words = new short[MEMORY_SIZE];
+    private final byte[] operations = new byte[MEMORY_SIZE];
+    private final boolean[] readsMemory = new boolean[MEMORY_SIZE];
+
+    private final short[] ram;
+    private final int[] as;
+    private final int[] ds;
+    private final int[] pcs;
+    private final long[] cycles;
+    private final boolean[] halted;
+    private final Emulator[] solos;   // lanes running on their own, null for the others
+
+    // Scratch arrays for one instruction of a group, indexed by position in the group:
+    private final int[] group;
+    private final int[] xs;
+    private final int[] ys;
+    private final int[] outs;
+
+    public BatchEmulator(short[] program, int lanes) {
+        if (lanes < 1 || lanes > MAX_LANES) {
+            throw new IllegalArgumentException("Number of lanes must be between 1 and " +
+                                               MAX_LANES + ": " + lanes);
+        }
+        if (program.length > MEMORY_SIZE) {
+            throw new IllegalArgumentException("Program does not fit in the ROM: " +
+                                               program.length + " instructions");
+        }
+        this.program = program.clone();
+        this.lanes = lanes;
+        ram = new short[MEMORY_SIZE * lanes];
+        as = new int[lanes];
+        ds = new int[lanes];
+        pcs = new int[lanes];
+        cycles = new long[lanes];
+        halted = new boolean[lanes];
+        solos = new Emulator[lanes];
+        group = new int[lanes];
+        xs = new int[lanes];
+        ys = new int[lanes];
+        outs = new int[lanes];
+        decode();
+    }
+
+    private void decode() {
+        for (int i = 0; i < MEMORY_SIZE; i++) {
+            int word = (i < program.length) ? program[i] : 0;
+            words[i] = (short) word;
+            if (word >= 0) {
+                kinds[i] = LOAD_A;
+                continue;
+            }
+            int comp = Code.compIndex(word >> 6);
+            readsMemory[i] = (word & 0x1000) != 0;
+            if (comp < 0) {
+                kinds[i] = GENERIC;
+                continue;
+            }
+            kinds[i] = COMPUTE;
+            operations[i] = (byte) Arrays.asList(OPERATIONS)
+                .indexOf(Code.COMP_SYMBOLS[comp].replace('M', 'A'));
+        }
+        for (int i = 0; i + 1 < program.length; i++) {
+            int next = program[i + 1];
+            if (program[i] == i && next < 0 && (next & 0b111111) == 0b000111) {
+                kinds[i] = HALT;   // no destination, unconditional jump
+            }
+        }
+    }
+
+    public int lanes() {
+        return lanes;
+    }
+
+    public int a(int lane) {
+        return (solos[lane] != null) ? solos[lane].a() : as[lane];
+    }
+
+    public int d(int lane) {
+        return (solos[lane] != null) ? solos[lane].d() : ds[lane];
+    }
+
+    public int pc(int lane) {
+        return (solos[lane] != null) ? solos[lane].pc() : pcs[lane];
+    }
+
+    public long cycles(int lane) {
+        return cycles[lane];
+    }
+
+    public boolean halted(int lane) {
+        return (solos[lane] != null) ? solos[lane].halted() : halted[lane];
+    }
+
+    /** Whether the lane was moved to an Emulator of its own. */
+    public boolean runsAlone(int lane) {
+        return solos[lane] != null;
+    }
+
+    public int ram(int lane, int address) {
+        return (solos[lane] != null) ? solos[lane].ram(address) : ram[address * lanes + lane];
+    }
+
+    public void setRam(int lane, int address, int value) {
+        if (solos[lane] != null) {
+            solos[lane].setRam(address, value);
+        } else {
+            ram[address * lanes + lane] = (short) value;
+            halted[lane] = false;
+        }
+    }
+
+    public void setKeyboard(int lane, int keyCode) {
+        setRam(lane, Emulator.KBD, keyCode);
+    }
+
+    /**
+     * Executes at most `maxCycles` instructions on every lane, fewer on lanes that halt,
+     * and returns the number of instructions executed on all lanes together.
+     */
+    public long run(long maxCycles) {
+        long[] targets = new long[lanes];
+        long total = 0;
+        for (int lane = 0; lane < lanes; lane++) {
+            targets[lane] = cycles[lane] + maxCycles;
+        }
+        while (true) {
+            // The group: the lanes at the smallest PC that still have cycles to run.
+            int pc = Integer.MAX_VALUE;
+            int waiting = Integer.MAX_VALUE;   // the PC of the next lanes in line
+            int size = 0;
+            long budget = Long.MAX_VALUE;
+            for (int lane = 0; lane < lanes; lane++) {
+                if (solos[lane] != null || halted[lane] || cycles[lane] == targets[lane]) {
+                    continue;
+                }
+                if (pcs[lane] < pc) {
+                    waiting = pc;
+                    pc = pcs[lane];
+                    size = 0;
+                    budget = Long.MAX_VALUE;
+                } else if (pcs[lane] > pc) {
+                    waiting = Math.min(waiting, pcs[lane]);
+                    continue;
+                }
+                group[size++] = lane;
+                budget = Math.min(budget, targets[lane] - cycles[lane]);
+            }
+            if (size == 0) {
+                break;
+            }
+            long executed = runGroup(size, pc, waiting, budget);
+            for (int i = 0; i < size; i++) {
+                cycles[group[i]] += executed;
+            }
+            total += executed * size;
+            if (size == 1 && executed == SOLO_LIMIT && cycles[group[0]] < targets[group[0]]) {
+                int lane = group[0];
+                runAlone(lane);
+                long solo = solos[lane].run(targets[lane] - cycles[lane]);
+                cycles[lane] += solo;
+                total += solo;
+            }
+        }
+        // Lanes that were already running alone:
+        for (int lane = 0; lane < lanes; lane++) {
+            if (solos[lane] != null && cycles[lane] < targets[lane] && !solos[lane].halted()) {
+                long solo = solos[lane].run(targets[lane] - cycles[lane]);
+                cycles[lane] += solo;
+                total += solo;
+            }
+        }
+        return total;
+    }
+
+    // Moves a lane to an Emulator of its own:
+    private void runAlone(int lane) {
+        Emulator emulator = new Emulator(program);
+        for (int address = 0; address < MEMORY_SIZE; address++) {
+            emulator.setRam(address, ram[address * lanes + lane]);
+        }
+        emulator.setRegisters(as[lane], ds[lane], pcs[lane]);
+        solos[lane] = emulator;
+    }
+
+    /**
+     * Runs the first `size` lanes of `group`, all at `pc`, in lockstep for at most
+     * `budget` instructions. Stops early when they split up, halt or reach `waiting`, the
+     * PC of other lanes that can then join them, and also after SOLO_LIMIT instructions
+     * of a single lane. Returns the number of instructions executed by each lane.
+     *
+     * After an @value, A is the same in all lanes; it is then kept in `uniformA` instead
+     * of `as`, and the RAM words of the lanes at that address are consecutive.
+     */
+    private long runGroup(int size, int pc, int waiting, long budget) {
+        int[] group = this.group;
+        int[] as = this.as;
+        int[] ds = this.ds;
+        int[] ys = this.ys;
+        int[] outs = this.outs;
+        short[] ram = this.ram;
+        int lanes = this.lanes;
+        boolean full = size == lanes;   // then group[i] == i
+        if (size == 1) {
+            budget = Math.min(budget, SOLO_LIMIT);
+        }
+        int uniformA = -1;
+        long executed = 0;
+        boolean split = false;
+        while (executed < budget) {
+            byte kind = kinds[pc];
+            if (kind == HALT) {
+                for (int i = 0; i < size; i++) {
+                    halted[group[i]] = true;
+                }
+                break;
+            }
+            executed++;
+            int word = words[pc];
+            if (kind == LOAD_A) {
+                uniformA = word;
+                pc = (pc + 1) & ADDRESS_MASK;
+                if (pc >= waiting) {
+                    break;
+                }
+                continue;
+            }
+
+            // Gather the ALU inputs, compute for all lanes at once, then scatter:
+            int[] xs = this.xs;
+            if (full) {
+                xs = ds;
+            } else {
+                for (int i = 0; i < size; i++) {
+                    xs[i] = ds[group[i]];
+                }
+            }
+            boolean memory = readsMemory[pc];
+            int base = uniformA * lanes;
+            if (uniformA < 0) {
+                for (int i = 0; i < size; i++) {
+                    int lane = group[i];
+                    ys[i] = memory ? ram[(as[lane] & ADDRESS_MASK) * lanes + lane] : as[lane];
+                }
+            } else if (!memory) {
+                Arrays.fill(ys, 0, size, uniformA);
+            } else if (full) {
+                for (int i = 0; i < size; i++) {
+                    ys[i] = ram[base + i];
+                }
+            } else {
+                for (int i = 0; i < size; i++) {
+                    ys[i] = ram[base + group[i]];
+                }
+            }
+            if (kind == COMPUTE) {
+                alu(operations[pc], xs, size);
+            } else {
+                for (int i = 0; i < size; i++) {
+                    outs[i] = Emulator.alu(word, xs[i], ys[i]);
+                }
+            }
+
+            if ((word & 0b1000) != 0) {   // M, at the address in A before this instruction
+                if (uniformA < 0) {
+                    for (int i = 0; i < size; i++) {
+                        int lane = group[i];
+                        int address = as[lane] & ADDRESS_MASK;
+                        if (address < Emulator.KBD) {
+                            ram[address * lanes + lane] = (short) outs[i];
+                        }
+                    }
+                } else if (uniformA < Emulator.KBD) {
+                    for (int i = 0; i < size; i++) {
+                        ram[base + (full ? i : group[i])] = (short) outs[i];
+                    }
+                }
+            }
+            int next = (pc + 1) & ADDRESS_MASK;
+            int target;
+            if ((word & 0b111) == 0) {
+                target = next;
+            } else if ((word & 0b111) == 0b111 && uniformA >= 0) {
+                target = uniformA;
+            } else {
+                target = -1;
+                for (int i = 0; i < size; i++) {
+                    int lane = group[i];
+                    int address = (uniformA >= 0) ? uniformA : as[lane] & ADDRESS_MASK;
+                    int laneTarget = Emulator.jumps(word, outs[i]) ? address : next;
+                    pcs[lane] = laneTarget;
+                    if (target < 0) {
+                        target = laneTarget;
+                    } else if (laneTarget != target) {
+                        split = true;
+                    }
+                }
+            }
+            if ((word & 0b100000) != 0) {
+                for (int i = 0; i < size; i++) {
+                    as[group[i]] = outs[i];
+                }
+                uniformA = -1;
+            }
+            if ((word & 0b10000) != 0) {
+                if (full) {
+                    System.arraycopy(outs, 0, ds, 0, size);
+                } else {
+                    for (int i = 0; i < size; i++) {
+                        ds[group[i]] = outs[i];
+                    }
+                }
+            }
+            if (split) {
+                break;   // pcs already set, lane by lane
+            }
+            pc = target;
+            if (pc >= waiting) {
+                break;   // other lanes can join at (or must run before) this PC
+            }
+        }
+        for (int i = 0; i < size; i++) {
+            if (uniformA >= 0) {
+                as[group[i]] = uniformA;
+            }
+            if (!split) {
+                pcs[group[i]] = pc;
+            }
+        }
+        return executed;
+    }
+
+    // Computes OPERATIONS[operation] of xs (D) and ys (A or M) into outs:
+    private void alu(int operation, int[] xs, int size) {
+        int[] ys = this.ys;
+        int[] outs = this.outs;
+        switch (operation) {
+            case 0:  Arrays.fill(outs, 0, size, 0); break;
+            case 1:  Arrays.fill(outs, 0, size, 1); break;
+            case 2:  Arrays.fill(outs, 0, size, -1); break;
+            case 3:  System.arraycopy(xs, 0, outs, 0, size); break;
+            case 4:  System.arraycopy(ys, 0, outs, 0, size); break;
+            case 5:  for (int i = 0; i < size; i++) { outs[i] = (short) ~xs[i]; } break;
+            case 6:  for (int i = 0; i < size; i++) { outs[i] = (short) ~ys[i]; } break;
+            case 7:  for (int i = 0; i < size; i++) { outs[i] = (short) -xs[i]; } break;
+            case 8:  for (int i = 0; i < size; i++) { outs[i] = (short) -ys[i]; } break;
+            case 9:  for (int i = 0; i < size; i++) { outs[i] = (short) (xs[i] + 1); } break;
+            case 10: for (int i = 0; i < size; i++) { outs[i] = (short) (ys[i] + 1); } break;
+            case 11: for (int i = 0; i < size; i++) { outs[i] = (short) (xs[i] - 1); } break;
+            case 12: for (int i = 0; i < size; i++) { outs[i] = (short) (ys[i] - 1); } break;
+            case 13: for (int i = 0; i < size; i++) { outs[i] = (short) (xs[i] + ys[i]); } break;
+            case 14: for (int i = 0; i < size; i++) { outs[i] = (short) (xs[i] - ys[i]); } break;
+            case 15: for (int i = 0; i < size; i++) { outs[i] = (short) (ys[i] - xs[i]); } break;
+            case 16: for (int i = 0; i < size; i++) { outs[i] = xs[i] & ys[i]; } break;
+            case 17: for (int i = 0; i < size; i++) { outs[i] = xs[i] | ys[i]; } break;
+            default: throw new IllegalArgumentException("Unknown ALU operation: " + operation);
+        }
+    }
+
+    // Usage: java BatchEmulator <file.hack | file.hackbin> --lanes N [--cycles N]
+    //                           [--set ADDRESS=VALUE]... [--vary ADDRESS=FIRST]...
+    //                           [--dump FROM-TO]
+    // Runs N copies of the program for the given cycles (default 1000000). --set sets a
+    // RAM word in every lane, --vary sets it to FIRST in lane 0, FIRST + 1 in lane 1 and
+    // so on. Prints the registers and the RAM words FROM to TO (default 0-15) per lane.
+    public static void main(String[] args) throws IOException {
+        short[] program = Emulator.load(args[0]);
+        int lanes = 1;
+        long maxCycles = 1_000_000;
+        int dumpFrom = 0;
+        int dumpTo = 15;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--lanes") && i + 1 < args.length) {
+                lanes = Integer.parseInt(args[++i]);
+            }
+        }
+        BatchEmulator batch = new BatchEmulator(program, lanes);
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--lanes") && i + 1 < args.length) {
+                i++;
+            } else if (args[i].equals("--cycles") && i + 1 < args.length) {
+                maxCycles = Long.parseLong(args[++i]);
+            } else if ((args[i].equals("--set") || args[i].equals("--vary")) &&
+                       i + 1 < args.length) {
+                boolean vary = args[i].equals("--vary");
+                String[] assignment = args[++i].split("=");
+                int address = Integer.parseInt(assignment[0]);
+                int value = Integer.parseInt(assignment[1]);
+                for (int lane = 0; lane < lanes; lane++) {
+                    batch.setRam(lane, address, vary ? value + lane : value);
+                }
+            } else if (args[i].equals("--dump") && i + 1 < args.length) {
+                String[] range = args[++i].split("-");
+                dumpFrom = Integer.parseInt(range[0]);
+                dumpTo = Integer.parseInt(range[1]);
+            } else {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+
+        long start = System.nanoTime();
+        long executed = batch.run(maxCycles);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d instructions on %d lanes in %.3f s (%.1f million instructions/s)%n",
+                          executed, lanes, seconds, executed / seconds / 1e6);
+        for (int lane = 0; lane < lanes; lane++) {
+            StringBuilder line = new StringBuilder();
+            line.append("lane ").append(lane).append(": A=").append(batch.a(lane))
+                .append(" D=").append(batch.d(lane)).append(" PC=").append(batch.pc(lane));
+            if (batch.halted(lane)) {
+                line.append(" (halted)");
+            }
+            line.append(" RAM[").append(dumpFrom).append("-").append(dumpTo).append("] =");
+            for (int address = dumpFrom; address <= dumpTo; address++) {
+                line.append(' ').append(batch.ram(lane, address));
+            }
+            System.out.println(line);
+        }
+    }
+}
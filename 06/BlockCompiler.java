@@ -0,0 +1,660 @@
+import java.io.ByteArrayOutputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Compiles regions of a Hack program to JVM bytecode, for Emulator.enableJit().
+ *
+ * A block starts at any address that control reaches and runs up to and including the
+ * first C-instruction with a jump field (or MAX_BLOCK_LENGTH instructions, the end of the
+ * program, or the start of an idle loop, which the emulator skips). It always executes
+ * the same number of instructions, so cycles can be counted per block. Once a block has
+ * been entered `hotThreshold` times, it is compiled along with the blocks that were
+ * already executed, are not compiled yet and are reached from it by fall-through or a
+ * jump to a constant address, up to MAX_REGION_LENGTH instructions: a loop, or a function
+ * with the ones it calls. The region becomes one method of a hidden class. Its blocks
+ * jump to each other directly; a jump to a computed address, such as the return of a
+ * function, goes through a switch over the blocks of the region. A and D stay in local
+ * variables and the method works directly on the RAM array. Addresses loaded by an
+ * @value are known while compiling, so the masking and the keyboard check of those
+ * memory accesses are left out. Control only goes back to the emulator when it leaves
+ * the region or when the next block does not fit in the cycles that are left.
+ *
+ * The class files are written by hand (version 49, which needs no stack map frames), as
+ * there is no class-file API in Java 17. The Hack ROM cannot be written by a program, so
+ * compiled regions never have to be invalidated, and the compiler of a program is shared
+ * by all its emulators (see forProgram()).
+ */
+public class BlockCompiler {
+    public static final int DEFAULT_HOT_THRESHOLD = 1000;
+    private static final int MAX_BLOCK_LENGTH = 256;
+    private static final int MAX_REGION_LENGTH = 1000;
+    // HotSpot does not JIT-compile methods with more bytes of bytecode (HugeMethodLimit):
+    private static final int MAX_CODE_SIZE = 8000;
+    private static final int CACHED_PROGRAMS = 16;
+    private static final int ADDRESS_MASK = 32767;
+
+    /**
+     * A compiled region: runs it from `pc`, one of its blocks, on the RAM and registers
+     * {A, D}, for whole blocks that fit in `limit` cycles. Stores A, D and the number of
+     * cycles executed (0 if the first block did not fit) in registers[0..2] and returns the
+     * next PC.
+     */
+    public interface CompiledRegion {
+        int execute(short[] ram, int[] registers, int pc, int limit);
+    }
+
+    // The most recently used compilers, by program and threshold:
+    private static final Map<ProgramKey, BlockCompiler> compilers =
+        new LinkedHashMap<ProgramKey, BlockCompiler>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ProgramKey, BlockCompiler> eldest) {
+                return size() > CACHED_PROGRAMS;
+            }
+        };
+
+    private static class ProgramKey {
+        private final short[] program;
+        private final int hotThreshold;
+
+        ProgramKey(short[] program, int hotThreshold) {
+            this.program = program;
+            this.hotThreshold = hotThreshold;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            return other instanceof ProgramKey && hotThreshold == ((ProgramKey) other).hotThreshold
+                && Arrays.equals(program, ((ProgramKey) other).program);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Arrays.hashCode(program) + hotThreshold;
+        }
+    }
+
+    private final short[] rom;
+    private final int programSize;
+    private final boolean[] idleLoops;
+    private final int hotThreshold;
+    private final int[] lengths;
+    private final int[] entries;
+    private final CompiledRegion[] regions;
+    private int compiledCount;
+
+    private BlockCompiler(short[] rom, int programSize, boolean[] idleLoops, int hotThreshold) {
+        this.rom = rom;
+        this.programSize = programSize;
+        this.idleLoops = idleLoops;
+        this.hotThreshold = hotThreshold;
+        lengths = new int[rom.length];
+        entries = new int[rom.length];
+        regions = new CompiledRegion[rom.length];
+    }
+
+    /**
+     * The compiler of the program in rom[0..programSize-1], where `idleLoops` marks the
+     * first instruction of the idle loops that the emulator skips. Emulators of the same
+     * program and threshold get the same compiler, so they count entries together and
+     * reuse the regions already compiled.
+     */
+    public static BlockCompiler forProgram(short[] rom, int programSize, boolean[] idleLoops,
+                                           int hotThreshold) {
+        ProgramKey key = new ProgramKey(Arrays.copyOf(rom, programSize), hotThreshold);
+        synchronized (compilers) {
+            return compilers.computeIfAbsent(
+                key, k -> new BlockCompiler(rom, programSize, idleLoops, hotThreshold));
+        }
+    }
+
+    public synchronized int compiledCount() {
+        return compiledCount;
+    }
+
+    private static boolean isCompilable(int word) {
+        return word >= 0 || Code.compIndex(word >> 6) >= 0;
+    }
+
+    /** Number of instructions executed by the block that starts at `pc`. */
+    public int blockLength(int pc) {
+        if (lengths[pc] == 0) {
+            int end = pc;
+            while (end < programSize && end - pc < MAX_BLOCK_LENGTH) {
+                int word = rom[end];
+                if (end > pc && (!isCompilable(word) || idleLoops[end])) {
+                    break;
+                }
+                end++;
+                if (word < 0 && (word & 0b111) != 0) {
+                    break;
+                }
+            }
+            lengths[pc] = Math.max(end - pc, 1);
+        }
+        return lengths[pc];
+    }
+
+    /**
+     * Counts an entry into the block at `pc` and returns the compiled region that contains
+     * it, compiling one when the block becomes hot; returns null while the block should be
+     * interpreted.
+     */
+    public CompiledRegion enter(int pc) {
+        CompiledRegion region = regions[pc];
+        if (region == null && entries[pc] >= 0 && ++entries[pc] >= hotThreshold) {
+            region = compile(pc);
+        }
+        return region;
+    }
+
+    // Entries are counted without a lock: an entry lost by another emulator at most delays
+    // the compilation. Regions are compiled one at a time.
+    private synchronized CompiledRegion compile(int pc) {
+        if (regions[pc] == null && entries[pc] >= 0) {
+            entries[pc] = -1;   // compiled, or not compilable: no need to count further
+            if (joins(pc)) {
+                compileRegion(pc);
+            }
+        }
+        return regions[pc];
+    }
+
+    // Whether the block at `pc` can be compiled into a new region: it must have been
+    // entered, and not be compiled already, so regions do not copy each other's code.
+    private boolean joins(int pc) {
+        return pc < programSize && entries[pc] != 0 && regions[pc] == null &&
+               isCompilable(rom[pc]) && !idleLoops[pc];
+    }
+
+    private void compileRegion(int entry) {
+        int[] blocks = regionBlocks(entry);
+        int count = blocks.length;
+        Bytecode code = emitRegion(blocks, count);
+        while (code.size() > MAX_CODE_SIZE && count > 1) {
+            count = (count + 1) / 2;   // keeps the blocks nearest to the entry
+            code = emitRegion(blocks, count);
+        }
+        CompiledRegion region = code.define();
+        for (int i = 0; i < count; i++) {
+            regions[blocks[i]] = region;
+        }
+        compiledCount++;
+    }
+
+    // The blocks of the region of `entry`, in breadth-first order from the entry:
+    private int[] regionBlocks(int entry) {
+        int[] blocks = new int[16];
+        int count = 0;
+        int length = 0;
+        ArrayDeque<Integer> queue = new ArrayDeque<>();
+        Set<Integer> queued = new HashSet<>();
+        queue.add(entry);
+        queued.add(entry);
+        while (!queue.isEmpty()) {
+            int start = queue.poll();
+            int blockLength = blockLength(start);
+            if (length + blockLength > MAX_REGION_LENGTH) {
+                continue;
+            }
+            if (count == blocks.length) {
+                blocks = Arrays.copyOf(blocks, 2 * count);
+            }
+            blocks[count++] = start;
+            length += blockLength;
+
+            int last = rom[start + blockLength - 1];
+            int jump = (last < 0) ? last & 0b111 : 0;
+            int[] successors = {
+                (jump != 0b111) ? (start + blockLength) & ADDRESS_MASK : -1,
+                (jump != 0) ? jumpTarget(start, blockLength) : -1
+            };
+            for (int successor : successors) {
+                if (successor >= 0 && joins(successor) && queued.add(successor)) {
+                    queue.add(successor);
+                }
+            }
+        }
+        return Arrays.copyOf(blocks, count);
+    }
+
+    // The address the block jumps to if it is a constant, else -1:
+    private int jumpTarget(int start, int length) {
+        int knownA = -1;
+        for (int pc = start; pc < start + length - 1; pc++) {
+            int word = rom[pc];
+            if (word >= 0) {
+                knownA = word;
+            } else if ((word & 0b100000) != 0) {
+                knownA = -1;
+            }
+        }
+        return knownA;
+    }
+
+    // Arguments of execute() after ram (1) and registers (2), then its local variables;
+    // LIMIT counts down the cycles left, from BUDGET:
+    private static final int PC = 3;
+    private static final int LIMIT = 4;
+    private static final int A = 5;
+    private static final int D = 6;
+    private static final int OUT = 7;
+    private static final int TARGET = 8;
+    private static final int BUDGET = 9;
+
+    // JVM opcodes used below:
+    private static final int ICONST_M1 = 0x02, ICONST_0 = 0x03, ICONST_1 = 0x04;
+    private static final int ICONST_2 = 0x05;
+    private static final int BIPUSH = 0x10, SIPUSH = 0x11, ILOAD = 0x15, ISTORE = 0x36;
+    private static final int ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, ALOAD_2 = 0x2c;
+    private static final int IALOAD = 0x2e, SALOAD = 0x35, IASTORE = 0x4f, SASTORE = 0x56;
+    private static final int IADD = 0x60, ISUB = 0x64, INEG = 0x74, IAND = 0x7e, IOR = 0x80;
+    private static final int IXOR = 0x82, I2S = 0x93;
+    private static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGE = 0x9c, IFGT = 0x9d;
+    private static final int IFLE = 0x9e, IF_ICMPGE = 0xa2, GOTO = 0xa7, LOOKUPSWITCH = 0xab;
+    private static final int IINC = 0x84, WIDE = 0xc4;
+    private static final int IRETURN = 0xac, RETURN = 0xb1, INVOKESPECIAL = 0xb7;
+
+    // Branch instruction for each jump field (JGT to JLE); 0 and JMP need none:
+    private static final int[] JUMP_BRANCHES = { 0, IFGT, IFEQ, IFGE, IFLT, IFNE, IFLE, 0 };
+
+    // The code of execute() for the first `count` blocks:
+    private Bytecode emitRegion(int[] blocks, int count) {
+        int[] starts = Arrays.copyOf(blocks, count);
+        Arrays.sort(starts);
+        Bytecode code = new Bytecode();
+        int exit = code.newLabel();
+        int dispatch = code.newLabel();
+        int[] labels = new int[count];   // the code of each block, in the order of `starts`
+        for (int i = 0; i < count; i++) {
+            labels[i] = code.newLabel();
+        }
+
+        code.op(ALOAD_2).op(ICONST_0).op(IALOAD).local(ISTORE, A);
+        code.op(ALOAD_2).op(ICONST_1).op(IALOAD).local(ISTORE, D);
+        code.local(ILOAD, LIMIT).local(ISTORE, BUDGET);
+        code.mark(dispatch);
+        code.local(ILOAD, PC).lookupSwitch(starts, labels, exit);
+        for (int i = 0; i < count; i++) {
+            code.mark(labels[i]);
+            emitBlock(code, starts[i], blockLength(starts[i]), starts, labels, dispatch, exit);
+        }
+        code.mark(exit);
+        code.op(ALOAD_2).op(ICONST_0).local(ILOAD, A).op(IASTORE);
+        code.op(ALOAD_2).op(ICONST_1).local(ILOAD, D).op(IASTORE);
+        code.op(ALOAD_2).op(ICONST_2).local(ILOAD, BUDGET).local(ILOAD, LIMIT).op(ISUB)
+            .op(IASTORE);
+        code.local(ILOAD, PC).op(IRETURN);
+        return code;
+    }
+
+    private void emitBlock(Bytecode code, int start, int length, int[] starts, int[] labels,
+                           int dispatch, int exit) {
+        // Leaves the region before the block if its cycles do not fit in those left:
+        int fits = code.newLabel();
+        code.increment(LIMIT, -length).local(ILOAD, LIMIT).jump(IFGE, fits);
+        code.increment(LIMIT, length).constant(start).local(ISTORE, PC).jump(GOTO, exit);
+        code.mark(fits);
+
+        // The value of A while it is a constant from an @value, else -1. Such a value is
+        // only stored into A at the end of the block; until then it is used as a constant.
+        int knownA = -1;
+        for (int pc = start; pc < start + length; pc++) {
+            int word = rom[pc];
+            if (word >= 0) {
+                knownA = word;
+                continue;
+            }
+
+            int jump = word & 0b111;
+            int target = knownA;
+            if (jump != 0 && knownA < 0) {
+                code.local(ILOAD, A).constant(ADDRESS_MASK).op(IAND).local(ISTORE, TARGET);
+            }
+            // The value is used once per destination and once by a conditional jump. If it
+            // is used once, it stays on the stack instead of going through OUT.
+            boolean conditional = jump != 0 && jump != 0b111;
+            int uses = Integer.bitCount(word & 0b111000) + (conditional ? 1 : 0);
+            if (uses > 0) {
+                emitComp(code, Code.COMP_SYMBOLS[Code.compIndex(word >> 6)], knownA);
+            }
+            if (uses > 1 || (word & 0b1000) != 0) {
+                code.local(ISTORE, OUT);
+                if ((word & 0b1000) != 0) {   // dest M
+                    if (knownA < 0) {
+                        int skip = code.newLabel();
+                        if (jump == 0) {   // else TARGET holds the address already
+                            code.local(ILOAD, A).constant(ADDRESS_MASK).op(IAND)
+                                .local(ISTORE, TARGET);
+                        }
+                        code.local(ILOAD, TARGET).constant(Emulator.KBD).jump(IF_ICMPGE, skip);
+                        code.op(ALOAD_1).local(ILOAD, TARGET).local(ILOAD, OUT).op(SASTORE);
+                        code.mark(skip);
+                    } else if (knownA < Emulator.KBD) {
+                        code.op(ALOAD_1).constant(knownA).local(ILOAD, OUT).op(SASTORE);
+                    }
+                }
+                if ((word & 0b100000) != 0) {   // dest A
+                    code.local(ILOAD, OUT).local(ISTORE, A);
+                    knownA = -1;
+                }
+                if ((word & 0b10000) != 0) {    // dest D
+                    code.local(ILOAD, OUT).local(ISTORE, D);
+                }
+                if (conditional) {
+                    code.local(ILOAD, OUT);
+                }
+            } else if ((word & 0b100000) != 0) {
+                code.local(ISTORE, A);
+                knownA = -1;
+            } else if ((word & 0b10000) != 0) {
+                code.local(ISTORE, D);
+            }
+
+            if (jump != 0) {   // the last instruction of the block
+                if (knownA >= 0) {
+                    code.constant(knownA).local(ISTORE, A);
+                }
+                if (conditional) {
+                    int next = (pc + 1) & ADDRESS_MASK;
+                    int block = (target >= 0) ? Arrays.binarySearch(starts, target) : -1;
+                    if (block >= 0) {
+                        code.jump(JUMP_BRANCHES[jump], labels[block]);
+                        emitGoto(code, next, starts, labels, exit);
+                        return;
+                    }
+                    int taken = code.newLabel();
+                    code.jump(JUMP_BRANCHES[jump], taken);
+                    emitGoto(code, next, starts, labels, exit);
+                    code.mark(taken);
+                }
+                if (target >= 0) {
+                    emitGoto(code, target, starts, labels, exit);
+                } else {
+                    code.local(ILOAD, TARGET).local(ISTORE, PC).jump(GOTO, dispatch);
+                }
+                return;
+            }
+        }
+        if (knownA >= 0) {
+            code.constant(knownA).local(ISTORE, A);
+        }
+        emitGoto(code, (start + length) & ADDRESS_MASK, starts, labels, exit);
+    }
+
+    // Continues at the constant address `pc`: in the region, or back in the emulator:
+    private static void emitGoto(Bytecode code, int pc, int[] starts, int[] labels, int exit) {
+        int block = Arrays.binarySearch(starts, pc);
+        if (block >= 0) {
+            code.jump(GOTO, labels[block]);
+        } else {
+            code.constant(pc).local(ISTORE, PC).jump(GOTO, exit);
+        }
+    }
+
+    // Pushes the value of a comp mnemonic, as spelled in Code.COMP_SYMBOLS:
+    private static void emitComp(Bytecode code, String symbol, int knownA) {
+        if (symbol.equals("0") || symbol.equals("1") || symbol.equals("-1")) {
+            code.constant(Integer.parseInt(symbol));
+        } else if (symbol.length() == 1) {
+            emitOperand(code, symbol.charAt(0), knownA);
+        } else if (symbol.charAt(0) == '!') {
+            emitOperand(code, symbol.charAt(1), knownA);
+            code.op(ICONST_M1).op(IXOR);
+        } else if (symbol.charAt(0) == '-') {
+            emitOperand(code, symbol.charAt(1), knownA);
+            code.op(INEG).op(I2S);
+        } else {
+            emitOperand(code, symbol.charAt(0), knownA);
+            emitOperand(code, symbol.charAt(2), knownA);
+            switch (symbol.charAt(1)) {
+                case '+': code.op(IADD).op(I2S); break;
+                case '-': code.op(ISUB).op(I2S); break;
+                case '&': code.op(IAND); break;
+                default:  code.op(IOR); break;
+            }
+        }
+    }
+
+    private static void emitOperand(Bytecode code, char operand, int knownA) {
+        switch (operand) {
+            case 'D': code.local(ILOAD, D); break;
+            case '1': code.op(ICONST_1); break;
+            case 'A':
+                if (knownA >= 0) {
+                    code.constant(knownA);
+                } else {
+                    code.local(ILOAD, A);
+                }
+                break;
+            default:   // M
+                code.op(ALOAD_1);
+                if (knownA >= 0) {
+                    code.constant(knownA);
+                } else {
+                    code.local(ILOAD, A).constant(ADDRESS_MASK).op(IAND);
+                }
+                code.op(SALOAD);
+                break;
+        }
+    }
+
+    /** The code of one execute() method, and the class file around it. */
+    private static class Bytecode {
+        private byte[] code = new byte[1024];
+        private int size;
+        private int[] labelOffsets = new int[64];
+        private int labelCount;
+        // Quadruples of (offset position, branch position, label, offset size in bytes):
+        private int[] fixups = new int[4 * 64];
+        private int fixupCount;
+
+        private void write(int value) {
+            if (size == code.length) {
+                code = Arrays.copyOf(code, 2 * size);
+            }
+            code[size++] = (byte) value;
+        }
+
+        private void writeInt(int value) {
+            write(value >> 24);
+            write(value >> 16);
+            write(value >> 8);
+            write(value);
+        }
+
+        int size() {
+            return size;
+        }
+
+        Bytecode op(int opcode) {
+            write(opcode);
+            return this;
+        }
+
+        Bytecode local(int opcode, int index) {
+            write(opcode);
+            write(index);
+            return this;
+        }
+
+        Bytecode constant(int value) {
+            if (value >= -1 && value <= 5) {
+                write(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                write(BIPUSH);
+                write(value);
+            } else {
+                write(SIPUSH);
+                write(value >> 8);
+                write(value);
+            }
+            return this;
+        }
+
+        Bytecode increment(int index, int value) {
+            if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                write(IINC);
+                write(index);
+                write(value);
+            } else {
+                write(WIDE);
+                write(IINC);
+                write(index >> 8);
+                write(index);
+                write(value >> 8);
+                write(value);
+            }
+            return this;
+        }
+
+        int newLabel() {
+            if (labelCount == labelOffsets.length) {
+                labelOffsets = Arrays.copyOf(labelOffsets, 2 * labelCount);
+            }
+            return labelCount++;
+        }
+
+        // Places the label at the current end of the code:
+        void mark(int label) {
+            labelOffsets[label] = size;
+        }
+
+        // Writes a branch to the label, placed before or after it:
+        Bytecode jump(int opcode, int label) {
+            int position = size;
+            write(opcode);
+            fixup(position, label, 2);
+            write(0);
+            write(0);
+            return this;
+        }
+
+        // Writes a lookupswitch from the sorted `keys` to their labels:
+        void lookupSwitch(int[] keys, int[] labels, int defaultLabel) {
+            int position = size;
+            write(LOOKUPSWITCH);
+            while (size % 4 != 0) {
+                write(0);
+            }
+            fixup(position, defaultLabel, 4);
+            writeInt(0);
+            writeInt(keys.length);
+            for (int i = 0; i < keys.length; i++) {
+                writeInt(keys[i]);
+                fixup(position, labels[i], 4);
+                writeInt(0);
+            }
+        }
+
+        private void fixup(int position, int label, int bytes) {
+            if (4 * fixupCount == fixups.length) {
+                fixups = Arrays.copyOf(fixups, 2 * fixups.length);
+            }
+            fixups[4 * fixupCount] = size;
+            fixups[4 * fixupCount + 1] = position;
+            fixups[4 * fixupCount + 2] = label;
+            fixups[4 * fixupCount + 3] = bytes;
+            fixupCount++;
+        }
+
+        CompiledRegion define() {
+            for (int i = 0; i < fixupCount; i++) {
+                int at = fixups[4 * i];
+                int offset = labelOffsets[fixups[4 * i + 2]] - fixups[4 * i + 1];
+                for (int b = fixups[4 * i + 3] - 1; b >= 0; b--, offset >>= 8) {
+                    code[at + b] = (byte) offset;
+                }
+            }
+
+            ByteArrayOutputStream file = new ByteArrayOutputStream(size + 256);
+            writeInt(file, 0xCAFEBABE);
+            writeShort(file, 0);      // minor version
+            writeShort(file, 49);     // major version
+            String[] utf8 = {
+                "HackRegion", "java/lang/Object", "BlockCompiler$CompiledRegion", "<init>",
+                "()V", "Code", "execute", "([S[III)I"
+            };
+            writeShort(file, 14);     // constant pool count
+            writeUtf8(file, utf8[0]);                    // #1
+            writeClass(file, 1);                         // #2 this class
+            writeUtf8(file, utf8[1]);                    // #3
+            writeClass(file, 3);                         // #4 super class
+            writeUtf8(file, utf8[2]);                    // #5
+            writeClass(file, 5);                         // #6 interface
+            writeUtf8(file, utf8[3]);                    // #7
+            writeUtf8(file, utf8[4]);                    // #8
+            file.write(12); writeShort(file, 7); writeShort(file, 8);   // #9 name and type
+            file.write(10); writeShort(file, 4); writeShort(file, 9);   // #10 Object.<init>
+            writeUtf8(file, utf8[5]);                    // #11
+            writeUtf8(file, utf8[6]);                    // #12
+            writeUtf8(file, utf8[7]);                    // #13
+            writeShort(file, 0x0031); // public final super
+            writeShort(file, 2);
+            writeShort(file, 4);
+            writeShort(file, 1);
+            writeShort(file, 6);
+            writeShort(file, 0);      // fields
+            writeShort(file, 2);      // methods
+            byte[] constructor = { (byte) ALOAD_0, (byte) INVOKESPECIAL, 0, 10, (byte) RETURN };
+            writeMethod(file, 7, 8, 1, 1, constructor);
+            writeMethod(file, 12, 13, 8, BUDGET + 1, Arrays.copyOf(code, size));
+            writeShort(file, 0);      // attributes
+
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.lookup()
+                    .defineHiddenClass(file.toByteArray(), true);
+                return (CompiledRegion) lookup
+                    .findConstructor(lookup.lookupClass(), MethodType.methodType(void.class))
+                    .invoke();
+            } catch (Throwable e) {
+                throw new IllegalStateException("Could not define a compiled region", e);
+            }
+        }
+
+        private static void writeMethod(ByteArrayOutputStream file, int name, int descriptor,
+                                        int maxStack, int maxLocals, byte[] code) {
+            writeShort(file, 0x0001); // public
+            writeShort(file, name);
+            writeShort(file, descriptor);
+            writeShort(file, 1);      // attributes: Code
+            writeShort(file, 11);
+            writeInt(file, 12 + code.length);
+            writeShort(file, maxStack);
+            writeShort(file, maxLocals);
+            writeInt(file, code.length);
+            file.write(code, 0, code.length);
+            writeShort(file, 0);      // exception table
+            writeShort(file, 0);      // attributes
+        }
+
+        private static void writeUtf8(ByteArrayOutputStream file, String text) {
+            file.write(1);
+            writeShort(file, text.length());
+            for (int i = 0; i < text.length(); i++) {
+                file.write(text.charAt(i));
+            }
+        }
+
+        private static void writeClass(ByteArrayOutputStream file, int name) {
+            file.write(7);
+            writeShort(file, name);
+        }
+
+        private static void writeShort(ByteArrayOutputStream file, int value) {
+            file.write(value >> 8);
+            file.write(value);
+        }
+
+        private static void writeInt(ByteArrayOutputStream file, int value) {
+            writeShort(file, value >>> 16);
+            writeShort(file, value);
+        }
+    }
+}
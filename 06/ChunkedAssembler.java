@@ -0,0 +1,201 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Assembles one large source in parallel. The source is split into chunks at line
+ * boundaries and processed in three steps:
+ * (1) in parallel, every chunk counts its instructions and collects its labels;
+ * (2) a prefix sum over the counts gives the address of the first instruction of
+ *     each chunk, and with it the address of every label;
+ * (3) in parallel, every chunk encodes its instructions into its own slice of the
+ *     program. Symbols that are not labels are collected per chunk and allocated
+ *     as variables afterwards, chunk by chunk, so the first-use order is kept.
+ */
+public class ChunkedAssembler {
+    private static final int CHUNKS_PER_THREAD = 4;
+
+    private final byte[] source;
+    private final int from;
+    private final int to;
+    private int instructionCount;
+    private int lineCount;
+    private int firstAddress;
+    // Triples of (symbol start, symbol end, local instruction index):
+    private int[] labels = new int[3 * 16];
+    private int labelCount;
+    // Triples of (instruction index, symbol start, symbol end):
+    private int[] fixups = new int[3 * 16];
+    private int fixupCount;
+    private AsmScanner.SyntaxError error;   // the first in the chunk, if any
+
+    private ChunkedAssembler(byte[] source, int from, int to) {
+        this.source = source;
+        this.from = from;
+        this.to = to;
+    }
+
+    public static int[] assemble(byte[] source, int threads, AssemblerMetrics metrics)
+            throws Exception {
+        long labelStart = (metrics != null) ? System.nanoTime() : 0;
+        List<ChunkedAssembler> chunks = split(source, threads * CHUNKS_PER_THREAD);
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            // Step 1:
+            List<Callable<Void>> counting = new ArrayList<>();
+            for (ChunkedAssembler chunk : chunks) {
+                counting.add(chunk::countInstructions);
+            }
+            runAll(pool, counting);
+            throwFirstError(chunks);
+
+            // Step 2:
+            SymbolTable symbolTable = SymbolTable.withPredefinedSymbols(totalLabels(chunks));
+            int address = 0;
+            for (ChunkedAssembler chunk : chunks) {
+                chunk.firstAddress = address;
+                for (int j = 0; j < chunk.labelCount; j++) {
+                    symbolTable.defineLabel(source, chunk.labels[3 * j], chunk.labels[3 * j + 1],
+                                            address + chunk.labels[3 * j + 2]);
+                }
+                address += chunk.instructionCount;
+            }
+
+            // Step 3 (the symbol table is only read from here on, until the fixups):
+            long encodeStart = (metrics != null) ? System.nanoTime() : 0;
+            int[] program = new int[address];
+            List<Callable<Void>> encoding = new ArrayList<>();
+            for (ChunkedAssembler chunk : chunks) {
+                encoding.add(() -> chunk.encode(program, symbolTable));
+            }
+            runAll(pool, encoding);
+            throwFirstError(chunks);
+            long encodeEnd = (metrics != null) ? System.nanoTime() : 0;
+            for (ChunkedAssembler chunk : chunks) {
+                for (int j = 0; j < chunk.fixupCount; j++) {
+                    program[chunk.fixups[3 * j]] = symbolTable.resolveVariable(
+                        source, chunk.fixups[3 * j + 1], chunk.fixups[3 * j + 2]);
+                }
+            }
+            if (metrics != null) {
+                long lines = 0;
+                for (ChunkedAssembler chunk : chunks) {
+                    lines += chunk.lineCount;
+                }
+                long labelPass = System.nanoTime() - encodeEnd + encodeStart - labelStart;
+                metrics.addFile(lines, program.length, totalLabels(chunks), symbolTable,
+                                labelPass, encodeEnd - encodeStart);
+            }
+            return program;
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    // Splits the source into about `count` chunks, each ending right after a newline:
+    private static List<ChunkedAssembler> split(byte[] source, int count) {
+        List<ChunkedAssembler> chunks = new ArrayList<>();
+        int chunkSize = Math.max(1, source.length / count);
+        int start = 0;
+        while (start < source.length) {
+            int end = Math.min(source.length, start + chunkSize);
+            while (end < source.length && source[end - 1] != '\n') {
+                end++;
+            }
+            chunks.add(new ChunkedAssembler(source, start, end));
+            start = end;
+        }
+        return chunks;
+    }
+
+    private static void runAll(ExecutorService pool, List<Callable<Void>> tasks)
+            throws Exception {
+        for (Future<Void> result : pool.invokeAll(tasks)) {
+            try {
+                result.get();
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof Exception) {
+                    throw (Exception) e.getCause();
+                }
+                throw e;
+            }
+        }
+    }
+
+    // Throws the first syntax error of the chunks, on its line in the whole source: the
+    // chunks before it were scanned in full, so their line counts are known.
+    private static void throwFirstError(List<ChunkedAssembler> chunks) {
+        int lines = 0;
+        for (ChunkedAssembler chunk : chunks) {
+            if (chunk.error != null) {
+                throw new AsmScanner.SyntaxError(lines + chunk.error.line(), chunk.error.detail());
+            }
+            lines += chunk.lineCount;
+        }
+    }
+
+    private static int totalLabels(List<ChunkedAssembler> chunks) {
+        int total = 0;
+        for (ChunkedAssembler chunk : chunks) {
+            total += chunk.labelCount;
+        }
+        return total;
+    }
+
+    private Void countInstructions() {
+        AsmScanner scanner = new AsmScanner(source, from, to);
+        try {
+            while (scanner.advance()) {
+                if (scanner.instructionType() == Parser.INSTRUCTION_TYPE.L_INSTRUCTION) {
+                    if (3 * labelCount == labels.length) {
+                        labels = Arrays.copyOf(labels, 2 * labels.length);
+                    }
+                    labels[3 * labelCount] = scanner.symbolStart();
+                    labels[3 * labelCount + 1] = scanner.symbolEnd();
+                    labels[3 * labelCount + 2] = instructionCount;
+                    labelCount++;
+                } else {
+                    instructionCount++;
+                }
+            }
+        } catch (AsmScanner.SyntaxError e) {
+            error = e;
+        }
+        lineCount = scanner.lineNumber();
+        return null;
+    }
+
+    private Void encode(int[] program, SymbolTable symbolTable) {
+        // The first scan left every line compacted and padded, so this one is cheap:
+        AsmScanner scanner = new AsmScanner(source, from, to);
+        int address = firstAddress;
+        try {
+            while (scanner.advance()) {
+                if (scanner.instructionType() == Parser.INSTRUCTION_TYPE.L_INSTRUCTION) {
+                    continue;
+                }
+                int word = Assembler.encodeInstruction(scanner, symbolTable);
+                if (word != -1) {
+                    program[address] = word;
+                } else {
+                    if (3 * fixupCount == fixups.length) {
+                        fixups = Arrays.copyOf(fixups, 2 * fixups.length);
+                    }
+                    fixups[3 * fixupCount] = address;
+                    fixups[3 * fixupCount + 1] = scanner.symbolStart();
+                    fixups[3 * fixupCount + 2] = scanner.symbolEnd();
+                    fixupCount++;
+                }
+                address++;
+            }
+        } catch (AsmScanner.SyntaxError e) {
+            error = e;
+        }
+        return null;
+    }
+}
@@ -1,3 +1,5 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 
@@ -6,6 +8,28 @@ public class Code {
     private static final Map<String, String> compMap = new HashMap<>();
     private static final Map<String, String> jumpMap = new HashMap<>();
 
+    // Integer versions of the three maps above, used by encode(). Each mnemonic (at most
+    // 3 characters) is packed into an int, 7 bits per character, and looked up in a small
+    // open-addressing table. The absent dest/jump field (null) is stored under key 0.
+    private static final int TABLE_SIZE = 64;
+    private static final int[] destKeys = new int[TABLE_SIZE];
+    private static final int[] destValues = new int[TABLE_SIZE];
+    private static final int[] compKeys = new int[TABLE_SIZE];
+    private static final int[] compValues = new int[TABLE_SIZE];
+    private static final int[] jumpKeys = new int[TABLE_SIZE];
+    private static final int[] jumpValues = new int[TABLE_SIZE];
+
+    /**
+     * The comp mnemonics in a fixed order. The emulator numbers its ALU operations by
+     * their position in this array, and compIndex() maps comp bits back to it.
+     */
+    public static final String[] COMP_SYMBOLS = {
+        "0", "1", "-1", "D", "A", "M", "!D", "!A", "!M", "-D", "-A", "-M",
+        "D+1", "A+1", "M+1", "D-1", "A-1", "M-1", "D+A", "D+M", "D-A", "D-M",
+        "A-D", "M-D", "D&A", "D&M", "D|A", "D|M"
+    };
+    private static final int[] compIndexByBits = new int[128];
+
     static {
         destMap.put(null, "000");
         destMap.put("M", "001");
@@ -53,6 +77,166 @@ public class Code {
         jumpMap.put("JNE", "101");
         jumpMap.put("JLE", "110");
         jumpMap.put("JMP", "111");
+
+        fillTable(destMap, destKeys, destValues);
+        fillTable(compMap, compKeys, compValues);
+        fillTable(jumpMap, jumpKeys, jumpValues);
+
+        Arrays.fill(compIndexByBits, -1);
+        for (int i = 0; i < COMP_SYMBOLS.length; i++) {
+            compIndexByBits[Integer.parseInt(compMap.get(COMP_SYMBOLS[i]), 2)] = i;
+        }
+    }
+
+    /**
+     * Position in COMP_SYMBOLS of the 7 comp bits (a, c1..c6) of a C-instruction, or -1
+     * if they do not encode one of the standard mnemonics.
+     */
+    public static int compIndex(int compBits) {
+        return compIndexByBits[compBits & 0x7F];
+    }
+
+    private static void fillTable(Map<String, String> map, int[] keys, int[] values) {
+        Arrays.fill(keys, -1);
+        for (Map.Entry<String, String> entry : map.entrySet()) {
+            String symbol = entry.getKey();
+            int key = (symbol == null) ? 0 : packKey(symbol, 0, symbol.length());
+            int slot = slot(key);
+            while (keys[slot] != -1) {
+                slot = (slot + 1) & (TABLE_SIZE - 1);
+            }
+            keys[slot] = key;
+            values[slot] = Integer.parseInt(entry.getValue(), 2);
+        }
+    }
+
+    private static int slot(int key) {
+        return (key * 0x9E3779B1) >>> 26;
+    }
+
+    // Packs the characters in [start, end) into an int, or returns -1 if they cannot
+    // be a valid mnemonic:
+    private static int packKey(String line, int start, int end) {
+        if (start >= end || end - start > 3) {
+            return -1;
+        }
+        int key = 0;
+        for (int i = start; i < end; i++) {
+            char c = line.charAt(i);
+            if (c >= 128) {
+                return -1;
+            }
+            key = (key << 7) | c;
+        }
+        return key;
+    }
+
+    private static int packKey(byte[] line, int start, int end) {
+        if (start >= end || end - start > 3) {
+            return -1;
+        }
+        int key = 0;
+        for (int i = start; i < end; i++) {
+            byte b = line[i];
+            if (b < 0) {
+                return -1;
+            }
+            key = (key << 7) | b;
+        }
+        return key;
+    }
+
+    private static int lookup(int[] keys, int[] values, int key) {
+        if (key == -1) {
+            return -1;
+        }
+        int slot = slot(key);
+        while (keys[slot] != -1) {
+            if (keys[slot] == key) {
+                return values[slot];
+            }
+            slot = (slot + 1) & (TABLE_SIZE - 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Encodes a C-instruction without comments or whitespace, such as "AM=M+1" or
+     * "D;JGT", into its 16-bit instruction word. Fields are decoded directly from
+     * the characters of the line, so no intermediate strings are created.
+     */
+    public static int encode(String line) {
+        int end = line.length();
+        int equalsIndex = -1;
+        int semicolonIndex = -1;
+        for (int i = 0; i < end; i++) {
+            char c = line.charAt(i);
+            if (c == '=' && equalsIndex == -1) {
+                equalsIndex = i;
+            } else if (c == ';' && semicolonIndex == -1) {
+                semicolonIndex = i;
+            }
+        }
+        int compStart = (equalsIndex != -1) ? equalsIndex + 1 : 0;
+        int compEnd = (semicolonIndex != -1) ? semicolonIndex : end;
+
+        int word = encodeFields((equalsIndex != -1) ? packKey(line, 0, equalsIndex) : 0,
+                                packKey(line, compStart, compEnd),
+                                (semicolonIndex != -1) ? packKey(line, semicolonIndex + 1, end) : 0);
+        if (word != -1) {
+            return word;
+        }
+
+        // Report the first invalid field:
+        if (lookup(destKeys, destValues,
+                   (equalsIndex != -1) ? packKey(line, 0, equalsIndex) : 0) == -1) {
+            throw new IllegalArgumentException("Invalid dest symbol: " +
+                                               line.substring(0, equalsIndex));
+        }
+        if (lookup(compKeys, compValues, packKey(line, compStart, compEnd)) == -1) {
+            throw new IllegalArgumentException("Invalid comp symbol: " +
+                                               line.substring(compStart, Math.max(compStart, compEnd)));
+        }
+        throw new IllegalArgumentException("Invalid jump symbol: " +
+                                           line.substring(semicolonIndex + 1));
+    }
+
+    /**
+     * Same as encode(String), for an instruction stored as ASCII bytes in
+     * line[start..end), as produced by AsmScanner.
+     */
+    public static int encode(byte[] line, int start, int end) {
+        int equalsIndex = -1;
+        int semicolonIndex = -1;
+        for (int i = start; i < end; i++) {
+            byte b = line[i];
+            if (b == '=' && equalsIndex == -1) {
+                equalsIndex = i;
+            } else if (b == ';' && semicolonIndex == -1) {
+                semicolonIndex = i;
+            }
+        }
+        int compStart = (equalsIndex != -1) ? equalsIndex + 1 : start;
+        int compEnd = (semicolonIndex != -1) ? semicolonIndex : end;
+
+        int word = encodeFields((equalsIndex != -1) ? packKey(line, start, equalsIndex) : 0,
+                                packKey(line, compStart, compEnd),
+                                (semicolonIndex != -1) ? packKey(line, semicolonIndex + 1, end) : 0);
+        if (word == -1) {
+            // Only on errors: let the String version build the message.
+            return encode(new String(line, start, end - start, StandardCharsets.US_ASCII));
+        }
+        return word;
+    }
+
+    private static int encodeFields(int destKey, int compKey, int jumpKey) {
+        int dest = lookup(destKeys, destValues, destKey);
+        int comp = lookup(compKeys, compValues, compKey);
+        int jump = lookup(jumpKeys, jumpValues, jumpKey);
+        if (dest == -1 || comp == -1 || jump == -1) {
+            return -1;
+        }
+        return 0b111 << 13 | comp << 6 | dest << 3 | jump;
     }
 
     public static String dest(String symbol) {
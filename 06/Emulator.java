@@ -0,0 +1,931 @@
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Emulates the Hack computer of project 5 (CPU.hdl, Memory.hdl, Computer.hdl) running
+ * a program produced by the Assembler, either as .hack text or as packed .hackbin.
+ *
+ * Registers are kept as ints holding sign-extended 16-bit values, ROM and RAM as
+ * short arrays of 32K words. As in Memory.hdl, addresses 0-16383 are RAM, 16384-24575
+ * the screen and 24576 the keyboard; writes to the keyboard (or above) are ignored.
+ * One instruction is executed per cycle.
+ *
+ * The ROM cannot change while a program runs, so every word is decoded once, when the
+ * emulator is created, into parallel arrays: the kind of operation, the index of the
+ * ALU function in Code.COMP_SYMBOLS, the destination bits, the jump bits and an
+ * immediate value. An A-instruction followed by a C-instruction (e.g. @SP, AM=M-1) is
+ * also decoded as a single fused operation, which run() executes in one step.
+ *
+ * Idle loops are recognized as well. A program that jumps to itself (such as the
+ * "(END_PROGRAM) @END_PROGRAM 0;JMP" written by the VM translator) halts the emulator,
+ * and countdown loops on D or on a RAM word are fast-forwarded: their cycles are counted
+ * but not executed. Loops that do not match these patterns, such as the compiled form of
+ * Sys.halt, are caught by probeIdle(), which run() calls every IDLE_CHECK_INTERVAL cycles;
+ * it only finds loops whose state never changes. Counted waits written in Jack, such as
+ * the loop of Sys.wait (which calls Math.multiply and increments a local on every pass),
+ * are not recognized and run at normal speed.
+ */
+public class Emulator {
+    public static final int SCREEN = 16384;
+    public static final int KBD = 24576;
+    private static final int MEMORY_SIZE = 32768;
+    private static final int ADDRESS_MASK = MEMORY_SIZE - 1;
+
+    // Kinds of decoded operations:
+    private static final byte LOAD_A = 0;      // @value
+    private static final byte COMPUTE = 1;     // C-instruction with a standard comp field
+    private static final byte LOAD_COMPUTE = 2; // @value followed by a COMPUTE
+    private static final byte GENERIC = 3;     // C-instruction with other comp bits
+    private static final byte IDLE_LOOP = 4;   // first instruction of an idle loop
+
+    // Idle loops recognized by decode(), with the instructions that make them up:
+    private static final byte HALT = 1;         // (L) @L, 0;JMP
+    private static final byte COUNTDOWN_D = 2;  // (L) D=D-1, @L, D;JGT
+    private static final byte COUNTDOWN_M = 3;  // (L) @X, M=M-1, D=M, @L, D;JGT
+    private static final int D_MINUS_ONE = Code.encode("D=D-1");
+    private static final int M_MINUS_ONE = Code.encode("M=M-1");
+    private static final int D_EQUALS_M = Code.encode("D=M");
+    private static final int JUMP_IF_POSITIVE = Code.encode("D;JGT");
+
+    private static final int IDLE_CHECK_INTERVAL = 1 << 20;
+    private static final int IDLE_PROBE_LENGTH = 1000;
+    // The words written during a probe and their values before it, reused by every probe:
+    private final int[] probeWritten = new int[IDLE_PROBE_LENGTH];
+    private final short[] probeOriginals = new short[IDLE_PROBE_LENGTH];
+
+    private final short[] rom = new short[MEMORY_SIZE];
+    // The decoded ROM; for LOAD_COMPUTE, the last three describe the next instruction:
+    private final byte[] kinds = new byte[MEMORY_SIZE];
+    private final int[] immediates = new int[MEMORY_SIZE];
+    private final byte[] aluOps = new byte[MEMORY_SIZE];
+    private final byte[] destinations = new byte[MEMORY_SIZE];
+    private final byte[] jumpConditions = new byte[MEMORY_SIZE];
+    private final byte[] idleLoops = new byte[MEMORY_SIZE];
+    private BlockCompiler compiler;   // null unless the JIT is enabled
+    private Profiler profiler;        // null unless profiling
+    private long[] screenRows;        // dirty rows of the screen, null unless tracked
+    private Recorder recorder;        // null unless recording
+    private Watchpoints watchpoints;  // null unless watching RAM
+    private final short[] ram = new short[MEMORY_SIZE];
+    private final int programSize;
+    private final int romChecksum;
+    private int a;
+    private int d;
+    private int pc;
+    private long cycles;
+    private boolean halted;
+    private boolean stopped;   // by a watchpoint, in the last run()
+
+    public Emulator(short[] program) {
+        if (program.length > MEMORY_SIZE) {
+            throw new IllegalArgumentException("Program does not fit in the ROM: " +
+                                               program.length + " instructions");
+        }
+        System.arraycopy(program, 0, rom, 0, program.length);
+        programSize = program.length;
+        CRC32 crc = new CRC32();
+        for (short word : program) {
+            crc.update(word >> 8);
+            crc.update(word);
+        }
+        romChecksum = (int) crc.getValue();
+        decode();
+    }
+
+    private void decode() {
+        for (int i = 0; i < MEMORY_SIZE; i++) {
+            int word = rom[i];
+            if (word >= 0) {
+                kinds[i] = LOAD_A;
+                immediates[i] = word;
+                continue;
+            }
+            int aluOp = Code.compIndex(word >> 6);
+            kinds[i] = (aluOp >= 0) ? COMPUTE : GENERIC;
+            immediates[i] = word;
+            aluOps[i] = (byte) aluOp;
+            destinations[i] = (byte) ((word >> 3) & 0b111);
+            jumpConditions[i] = (byte) (word & 0b111);
+        }
+        for (int i = 0; i + 1 < MEMORY_SIZE; i++) {
+            if (kinds[i] == LOAD_A && kinds[i + 1] == COMPUTE) {
+                kinds[i] = LOAD_COMPUTE;
+                aluOps[i] = aluOps[i + 1];
+                destinations[i] = destinations[i + 1];
+                jumpConditions[i] = jumpConditions[i + 1];
+            }
+        }
+        for (int i = 0; i < programSize; i++) {
+            idleLoops[i] = idleLoopAt(i);
+            if (idleLoops[i] != 0) {
+                kinds[i] = IDLE_LOOP;
+            }
+        }
+    }
+
+    private int romWord(int address) {
+        return (address < MEMORY_SIZE) ? rom[address] : 0;
+    }
+
+    private byte idleLoopAt(int i) {
+        if (romWord(i) == i && romWord(i + 1) < 0 && (romWord(i + 1) & 0b111111) == 0b000111) {
+            return HALT;   // no destination, unconditional jump
+        }
+        if (romWord(i) == (short) D_MINUS_ONE && romWord(i + 1) == i &&
+            romWord(i + 2) == (short) JUMP_IF_POSITIVE) {
+            return COUNTDOWN_D;
+        }
+        if (romWord(i) >= 0 && romWord(i) < KBD && romWord(i + 1) == (short) M_MINUS_ONE &&
+            romWord(i + 2) == (short) D_EQUALS_M && romWord(i + 3) == i &&
+            romWord(i + 4) == (short) JUMP_IF_POSITIVE) {
+            return COUNTDOWN_M;
+        }
+        return 0;
+    }
+
+    /** Loads a program from a .hack (text) or .hackbin (2 bytes per word) file. */
+    public static short[] load(String fileName) throws IOException {
+        if (fileName.endsWith(".hackbin")) {
+            ByteBuffer bytes = ByteBuffer.wrap(Files.readAllBytes(Paths.get(fileName)));
+            short[] program = new short[bytes.remaining() / 2];
+            bytes.asShortBuffer().get(program);
+            return program;
+        }
+        short[] program = new short[1024];
+        int size = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(fileName))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty()) {
+                    continue;
+                }
+                if (size == program.length) {
+                    program = Arrays.copyOf(program, 2 * size);
+                }
+                program[size++] = (short) Integer.parseInt(line, 2);
+            }
+        }
+        return Arrays.copyOf(program, size);
+    }
+
+    /**
+     * Lets run() compile the regions around blocks that are entered at least
+     * `hotThreshold` times to JVM bytecode (see BlockCompiler); cold code is still
+     * interpreted. The compiled code is shared with the other emulators of the program.
+     */
+    public void enableJit(int hotThreshold) {
+        boolean[] idleStarts = new boolean[MEMORY_SIZE];
+        for (int i = 0; i < programSize; i++) {
+            idleStarts[i] = kinds[i] == IDLE_LOOP;
+        }
+        compiler = BlockCompiler.forProgram(rom, programSize, idleStarts, hotThreshold);
+    }
+
+    /**
+     * Makes run() count every executed instruction in the profiler. Instructions are
+     * then executed one by one, without the JIT or the skipping of countdown loops.
+     */
+    public void enableProfiling(Profiler profiler) {
+        this.profiler = profiler;
+    }
+
+    /**
+     * Makes every write to the screen set the bit of its row (0-255) in `dirtyRows`, a
+     * bitset of 4 longs that the caller clears as it sees fit (see ScreenCapture). The
+     * JIT is not used while screen writes are tracked.
+     */
+    public void trackScreenWrites(long[] dirtyRows) {
+        screenRows = dirtyRows;
+    }
+
+    private void screenWritten(int address) {
+        int row = (address - SCREEN) >> 5;
+        screenRows[row >> 6] |= 1L << row;
+    }
+
+    /**
+     * Makes run() check every access to RAM against the watchpoints (null for none).
+     * Instructions are then executed one by one, without the JIT, the skipping of
+     * countdown loops or the detection of other idle loops; the usual loops are back as
+     * soon as the watchpoints are removed. Watchpoints are ignored while profiling.
+     */
+    public void watch(Watchpoints watchpoints) {
+        this.watchpoints = watchpoints;
+    }
+
+    /** Whether the last run() stopped at a watchpoint (see Watchpoints.add()). */
+    public boolean stopped() {
+        return stopped;
+    }
+
+    // Used by Recorder, which logs every write and takes its checkpoints through run().
+    // The JIT is not used while recording.
+    void record(Recorder recorder) {
+        this.recorder = recorder;
+    }
+
+    // The cycles left before the next checkpoint of the recorder, at most `maxCycles`:
+    private long untilCheckpoint(long maxCycles) {
+        return (recorder != null) ? Math.min(maxCycles, recorder.nextCheckpoint() - cycles)
+                                  : maxCycles;
+    }
+
+    private void checkpointIfDue() {
+        if (recorder != null && cycles == recorder.nextCheckpoint()) {
+            recorder.checkpoint();
+        }
+    }
+
+    /**
+     * Number of regions compiled so far by the JIT for this program, also by other
+     * emulators (0 when it is disabled).
+     */
+    public int compiledRegions() {
+        return (compiler != null) ? compiler.compiledCount() : 0;
+    }
+
+    public int programSize() {
+        return programSize;
+    }
+
+    short[] program() {
+        return Arrays.copyOf(rom, programSize);
+    }
+
+    /** CRC-32 of the program, to tell whether saved state (a Snapshot) belongs to it. */
+    public int romChecksum() {
+        return romChecksum;
+    }
+
+    /** Sets PC to 0, as the reset input of the computer does; RAM is kept. */
+    public void reset() {
+        pc = 0;
+        halted = false;
+        if (recorder != null) {
+            recorder.changed(-1, 0);
+        }
+    }
+
+    /** Whether the program has been found to loop forever without changing any state. */
+    public boolean halted() {
+        return halted;
+    }
+
+    public int a() {
+        return a;
+    }
+
+    public int d() {
+        return d;
+    }
+
+    public int pc() {
+        return pc;
+    }
+
+    public long cycles() {
+        return cycles;
+    }
+
+    /** Sets A, D and PC, e.g. to continue a run that was started elsewhere. */
+    public void setRegisters(int a, int d, int pc) {
+        this.a = (short) a;
+        this.d = (short) d;
+        this.pc = pc & ADDRESS_MASK;
+        halted = false;
+        if (recorder != null) {
+            recorder.changed(-1, 0);
+        }
+    }
+
+    public int ram(int address) {
+        return ram[address];
+    }
+
+    public void setRam(int address, int value) {
+        int old = ram[address];
+        ram[address] = (short) value;
+        if (address >= SCREEN && address < KBD && screenRows != null) {
+            screenWritten(address);
+        }
+        halted = false;   // a loop waiting for this word may now exit
+        if (recorder != null) {
+            recorder.changed(address, old);
+        }
+    }
+
+    // Used by Snapshot to save and restore the whole state:
+    void copyRamTo(ShortBuffer buffer) {
+        buffer.put(ram);
+    }
+
+    void restore(ShortBuffer savedRam, int a, int d, int pc, long cycles, boolean halted) {
+        savedRam.get(ram);
+        this.a = a;
+        this.d = d;
+        this.pc = pc;
+        this.cycles = cycles;
+        this.halted = halted;
+        if (screenRows != null) {
+            Arrays.fill(screenRows, -1L);   // the whole screen may have changed
+        }
+        if (recorder != null) {
+            recorder.changed(MEMORY_SIZE, 0);
+        }
+    }
+
+    /** Sets the key code seen by the program at address KBD (0 when no key is pressed). */
+    public void setKeyboard(int keyCode) {
+        int old = ram[KBD];
+        ram[KBD] = (short) keyCode;
+        halted = false;
+        if (recorder != null) {
+            recorder.changed(KBD, old);
+        }
+    }
+
+    // The ALU of project 2, controlled by bits 11 (zx) to 6 (no) of a C-instruction:
+    static int alu(int instruction, int x, int y) {
+        if ((instruction & 0x800) != 0) { x = 0; }
+        if ((instruction & 0x400) != 0) { x = ~x; }
+        if ((instruction & 0x200) != 0) { y = 0; }
+        if ((instruction & 0x100) != 0) { y = ~y; }
+        int out = ((instruction & 0x80) != 0) ? x + y : x & y;
+        if ((instruction & 0x40) != 0) { out = ~out; }
+        return (short) out;
+    }
+
+    static boolean jumps(int instruction, int out) {
+        return (out < 0 && (instruction & 0b100) != 0) ||
+               (out == 0 && (instruction & 0b010) != 0) ||
+               (out > 0 && (instruction & 0b001) != 0);
+    }
+
+    /**
+     * Computes the comp field with the given index in Code.COMP_SYMBOLS. The cases
+     * must follow the order of that array; the static check below makes sure they do.
+     */
+    static int compute(int aluOp, int d, int a, int m) {
+        switch (aluOp) {
+            case 0:  return 0;
+            case 1:  return 1;
+            case 2:  return -1;
+            case 3:  return d;
+            case 4:  return a;
+            case 5:  return m;
+            case 6:  return (short) ~d;
+            case 7:  return (short) ~a;
+            case 8:  return (short) ~m;
+            case 9:  return (short) -d;
+            case 10: return (short) -a;
+            case 11: return (short) -m;
+            case 12: return (short) (d + 1);
+            case 13: return (short) (a + 1);
+            case 14: return (short) (m + 1);
+            case 15: return (short) (d - 1);
+            case 16: return (short) (a - 1);
+            case 17: return (short) (m - 1);
+            case 18: return (short) (d + a);
+            case 19: return (short) (d + m);
+            case 20: return (short) (d - a);
+            case 21: return (short) (d - m);
+            case 22: return (short) (a - d);
+            case 23: return (short) (m - d);
+            case 24: return d & a;
+            case 25: return d & m;
+            case 26: return d | a;
+            case 27: return d | m;
+            default: throw new IllegalArgumentException("Unknown ALU operation: " + aluOp);
+        }
+    }
+
+    static {
+        int[] samples = { 0, 1, -1, 5, -32768, 32767, 0x5A5A };
+        for (int i = 0; i < Code.COMP_SYMBOLS.length; i++) {
+            int word = Code.encode(Code.COMP_SYMBOLS[i]);
+            for (int d : samples) {
+                for (int y : samples) {
+                    int expected = alu(word, d, y);
+                    boolean usesM = (word & 0x1000) != 0;
+                    if (compute(i, d, usesM ? 0x1234 : y, usesM ? y : 0x1234) != expected) {
+                        throw new IllegalStateException("ALU operation " + i +
+                            " does not compute " + Code.COMP_SYMBOLS[i]);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Executes the instruction at PC straight from its ROM word, without the decoded
+     * arrays. Slower than run(), but simple to extend with checks on every step.
+     */
+    public void step() {
+        execute(cycles);
+        cycles++;
+        checkpointIfDue();
+    }
+
+    // `cycle` is the number of the instruction, for the recorder:
+    private void execute(long cycle) {
+        int instruction = rom[pc];
+        if (instruction >= 0) {
+            a = instruction;
+            pc = (pc + 1) & ADDRESS_MASK;
+            return;
+        }
+        int address = a & ADDRESS_MASK;
+        int y = ((instruction & 0x1000) != 0) ? ram[address] : a;
+        int out = alu(instruction, d, y);
+        if ((instruction & 0b1000) != 0 && address < KBD) {
+            if (recorder != null) {
+                recorder.written(cycle, address, ram[address]);
+            }
+            ram[address] = (short) out;
+            if (address >= SCREEN && screenRows != null) {
+                screenWritten(address);
+            }
+        }
+        pc = jumps(instruction, out) ? address : (pc + 1) & ADDRESS_MASK;
+        if ((instruction & 0b100000) != 0) {
+            a = out;
+        }
+        if ((instruction & 0b10000) != 0) {
+            d = out;
+        }
+    }
+
+    /**
+     * Executes at most `maxCycles` instructions and returns how many were executed,
+     * fewer if the program halts (see halted()) or a watchpoint stops it (see stopped()).
+     */
+    public long run(long maxCycles) {
+        long executed = 0;
+        stopped = false;
+        while (executed < maxCycles && !halted && !stopped) {
+            long slice = Math.min(IDLE_CHECK_INTERVAL, untilCheckpoint(maxCycles - executed));
+            if (profiler != null) {
+                executed += runProfiled(slice);
+            } else if (watchpoints != null) {
+                executed += runWatched(slice);
+                checkpointIfDue();
+                continue;
+            } else {
+                boolean compiled = compiler != null && screenRows == null && recorder == null;
+                executed += compiled ? runCompiled(slice) : interpret(slice);
+            }
+            checkpointIfDue();
+            if (executed < maxCycles && !halted) {
+                executed += probeIdle((int) Math.min(IDLE_PROBE_LENGTH,
+                                                     untilCheckpoint(maxCycles - executed)));
+                checkpointIfDue();
+            }
+        }
+        return executed;
+    }
+
+    /**
+     * Runs the idle loop that starts at PC, for at most `maxCycles` cycles. A HALT sets
+     * `halted` and executes nothing; a countdown runs all the iterations that fit in
+     * maxCycles at once, or single instructions if not even one fits. Returns the number
+     * of cycles used, without adding them to `cycles`, which is that of the first one.
+     */
+    private long skipIdleLoop(long maxCycles, long cycle) {
+        int length;
+        int remaining;   // iterations until the loop exits
+        switch (idleLoops[pc]) {
+            case HALT:
+                halted = true;
+                return 0;
+            case COUNTDOWN_D:
+                length = 3;
+                remaining = (short) (d - 1) > 0 ? (short) (d - 1) + 1 : 1;
+                break;
+            default:   // COUNTDOWN_M
+                length = 5;
+                int value = ram[rom[pc]];
+                remaining = (short) (value - 1) > 0 ? (short) (value - 1) + 1 : 1;
+                break;
+        }
+        long iterations = Math.min(remaining, maxCycles / length);
+        if (iterations == 0) {
+            for (long i = 0; i < maxCycles; i++) {
+                execute(cycle + i);
+            }
+            return maxCycles;
+        }
+        if (idleLoops[pc] == COUNTDOWN_D) {
+            d = (short) (d - iterations);
+        } else {
+            int address = rom[pc];
+            if (recorder != null) {   // logged as the first write, by the M=M-1
+                recorder.written(cycle + 1, address, ram[address]);
+            }
+            ram[address] = (short) (ram[address] - iterations);
+            if (address >= SCREEN && screenRows != null) {
+                screenWritten(address);
+            }
+            d = ram[address];
+        }
+        a = pc;
+        if (iterations == remaining) {
+            pc += length;
+        }
+        return iterations * length;
+    }
+
+    /**
+     * Executes up to `maxCycles` instructions one by one, watching for a return to the
+     * current PC with the same A and D and the same contents of every word written in
+     * between. Since the computer is deterministic, that state then repeats forever, and
+     * `halted` is set; a read of the keyboard rules this out. Returns the cycles executed.
+     */
+    private long probeIdle(int maxCycles) {
+        int startPc = pc;
+        int startA = a;
+        int startD = d;
+        int[] written = probeWritten;
+        short[] originals = probeOriginals;
+        int writes = 0;
+        boolean readsKeyboard = false;
+        long executed = 0;
+        while (executed < maxCycles) {
+            int instruction = rom[pc];
+            int address = a & ADDRESS_MASK;
+            if (instruction < 0 && (instruction & 0x1000) != 0 && address == KBD) {
+                readsKeyboard = true;
+            }
+            if (instruction < 0 && (instruction & 0b1000) != 0 && address < KBD) {
+                int i = 0;
+                while (i < writes && written[i] != address) {
+                    i++;
+                }
+                if (i == writes) {
+                    written[writes] = address;
+                    originals[writes++] = ram[address];
+                }
+            }
+            if (profiler != null) {
+                int previous = pc;
+                profiler.counts()[pc]++;
+                execute(cycles + executed);
+                profiler.pause(1);
+                if (rom[previous] < 0 && (rom[previous] & 0b111) != 0) {   // a jump, taken or not
+                    profiler.jumped(pc, 0, ram);
+                }
+            } else {
+                execute(cycles + executed);
+            }
+            executed++;
+            if (pc == startPc) {
+                boolean unchanged = !readsKeyboard && a == startA && d == startD;
+                for (int i = 0; i < writes && unchanged; i++) {
+                    unchanged = ram[written[i]] == originals[i];
+                }
+                if (unchanged) {
+                    halted = true;
+                    break;
+                }
+                startA = a;
+                startD = d;
+                writes = 0;
+                readsKeyboard = false;
+            }
+        }
+        cycles += executed;
+        return executed;
+    }
+
+    // Executes single instructions, counting them in the profiler:
+    private long runProfiled(long maxCycles) {
+        long[] counts = profiler.counts();
+        long executed = 0;
+        long sinceJump = 0;
+        while (executed < maxCycles) {
+            if (kinds[pc] == IDLE_LOOP && idleLoops[pc] == HALT) {
+                halted = true;
+                break;
+            }
+            int previous = pc;
+            counts[pc]++;
+            execute(cycles + executed);
+            executed++;
+            sinceJump++;
+            if (rom[previous] < 0 && (rom[previous] & 0b111) != 0) {   // a jump, taken or not
+                profiler.jumped(pc, sinceJump, ram);
+                sinceJump = 0;
+            }
+        }
+        profiler.pause(sinceJump);
+        cycles += executed;
+        return executed;
+    }
+
+    // Executes single instructions, passing their accesses to watched pages to the
+    // watchpoints:
+    private long runWatched(long maxCycles) {
+        long executed = 0;
+        while (executed < maxCycles) {
+            if (kinds[pc] == IDLE_LOOP && idleLoops[pc] == HALT) {
+                halted = true;
+                break;
+            }
+            int instruction = rom[pc];
+            int address = a & ADDRESS_MASK;
+            int kind = 0;
+            if (instruction < 0 && watchpoints.trapped(address)) {
+                kind = (((instruction & 0x1000) != 0) ? Watchpoints.READ : 0) |
+                       (((instruction & 0b1000) != 0 && address < KBD) ? Watchpoints.WRITE : 0);
+            }
+            if (kind == 0) {
+                execute(cycles + executed);
+                executed++;
+                continue;
+            }
+            int previous = pc;
+            int old = ram[address];
+            execute(cycles + executed);
+            executed++;
+            if (watchpoints.accessed(cycles + executed - 1, previous, address, kind, old,
+                                     ram[address])) {
+                stopped = true;
+                break;
+            }
+        }
+        cycles += executed;
+        return executed;
+    }
+
+    // Runs compiled regions for as long as they fit in maxCycles, and the other blocks
+    // through interpret():
+    private long runCompiled(long maxCycles) {
+        int[] registers = new int[3];
+        long executed = 0;
+        while (executed < maxCycles) {
+            if (kinds[pc] == IDLE_LOOP) {
+                long skipped = skipIdleLoop(maxCycles - executed, cycles);
+                cycles += skipped;
+                executed += skipped;
+                if (halted) {
+                    break;
+                }
+                continue;
+            }
+            BlockCompiler.CompiledRegion region = compiler.enter(pc);
+            if (region != null) {
+                registers[0] = a;
+                registers[1] = d;
+                int next = region.execute(ram, registers, pc, (int) (maxCycles - executed));
+                if (registers[2] > 0) {
+                    pc = next;
+                    a = registers[0];
+                    d = registers[1];
+                    cycles += registers[2];
+                    executed += registers[2];
+                    continue;
+                }
+            }
+            executed += interpret(Math.min(compiler.blockLength(pc), maxCycles - executed));
+        }
+        return executed;
+    }
+
+    /**
+     * The interpreter: executes at most `maxCycles` decoded instructions. The loop keeps
+     * the registers in local variables and allocates nothing.
+     */
+    @SuppressWarnings("fallthrough")
+    private long interpret(long maxCycles) {
+        byte[] kinds = this.kinds;
+        int[] immediates = this.immediates;
+        byte[] aluOps = this.aluOps;
+        byte[] destinations = this.destinations;
+        byte[] jumpConditions = this.jumpConditions;
+        short[] ram = this.ram;
+        int a = this.a;
+        int d = this.d;
+        int pc = this.pc;
+        long executed = 0;
+
+        loop:
+        while (executed < maxCycles) {
+            int out;
+            int op = pc;   // where the fields of the C-instruction are decoded
+            int next = (pc + 1) & ADDRESS_MASK;
+            switch (kinds[pc]) {
+                case LOAD_A:
+                    a = immediates[pc];
+                    pc = next;
+                    executed++;
+                    continue;
+                case LOAD_COMPUTE:
+                    a = immediates[pc];
+                    if (executed + 1 == maxCycles) {   // no cycle left for the C-instruction
+                        pc = next;
+                        executed++;
+                        continue;
+                    }
+                    pc = next;
+                    next = (pc + 1) & ADDRESS_MASK;
+                    executed++;
+                    // falls through to the C-instruction, decoded along with the @value
+                case COMPUTE:
+                    out = compute(aluOps[op], d, a, ram[a & ADDRESS_MASK]);
+                    break;
+                case GENERIC:
+                    int instruction = immediates[op];
+                    out = alu(instruction, d,
+                              ((instruction & 0x1000) != 0) ? ram[a & ADDRESS_MASK] : a);
+                    break;
+                default:   // IDLE_LOOP
+                    this.a = a;
+                    this.d = d;
+                    this.pc = pc;
+                    executed += skipIdleLoop(maxCycles - executed, cycles + executed);
+                    a = this.a;
+                    d = this.d;
+                    pc = this.pc;
+                    if (halted) {
+                        break loop;
+                    }
+                    continue;
+            }
+            executed++;
+            int address = a & ADDRESS_MASK;
+            int destination = destinations[op];
+            if ((destination & 0b001) != 0 && address < KBD) {
+                if (recorder != null) {
+                    recorder.written(cycles + executed - 1, address, ram[address]);
+                }
+                ram[address] = (short) out;
+                if (address >= SCREEN && screenRows != null) {
+                    screenWritten(address);
+                }
+            }
+            int condition = jumpConditions[op];
+            boolean jump = (out < 0) ? (condition & 0b100) != 0
+                         : (out == 0) ? (condition & 0b010) != 0
+                         : (condition & 0b001) != 0;
+            pc = jump ? address : next;
+            if ((destination & 0b100) != 0) {
+                a = out;
+            }
+            if ((destination & 0b010) != 0) {
+                d = out;
+            }
+        }
+
+        this.a = a;
+        this.d = d;
+        this.pc = pc;
+        cycles += executed;
+        return executed;
+    }
+
+    // Usage: java Emulator <file.hack | file.hackbin> [--cycles N] [--set ADDRESS=VALUE]...
+    //                      [--dump FROM-TO] [--jit [THRESHOLD]] [--profile FILE.asm [--top N]]
+    //                      [--restore SNAPSHOT] [--save SNAPSHOT]
+    //                      [--last-write ADDRESS] [--rewind CYCLE]
+    //                      [--watch FROM-TO[:r|w|rw]]... [--break] [--trace FILE]
+    // Runs the program for N cycles (default 1000000) after setting the given RAM words,
+    // then prints the registers and the RAM words FROM to TO (default 0-15). --restore
+    // starts from a Snapshot file and --save writes one at the end of the run. The last
+    // two options record the run (see Recorder): --last-write prints the last cycle that
+    // wrote to the address, and --rewind goes back to the given cycle before printing
+    // (and saving). --watch sets watchpoints (on writes by default; see Watchpoints), and
+    // prints the number of accesses and the last one; with --break the run stops at the
+    // first, and --trace writes them all to a binary trace file. With --jit, the code
+    // around blocks entered THRESHOLD times (default 1000) is compiled to JVM bytecode.
+    // With --profile, prints the N (default 20) functions and lines of FILE.asm that used
+    // the most cycles, and writes the call stacks to FILE.folded for flame graph tools.
+    public static void main(String[] args) throws IOException {
+        Emulator emulator = new Emulator(load(args[0]));
+        long maxCycles = 1_000_000;
+        int dumpFrom = 0;
+        int dumpTo = 15;
+        String profiledFile = null;
+        String savedFile = null;
+        int lastWrite = -1;
+        long rewind = -1;
+        Watchpoints watchpoints = new Watchpoints();
+        List<String> watched = new ArrayList<>();
+        boolean stop = false;
+        String traceFile = null;
+        int top = 20;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--cycles") && i + 1 < args.length) {
+                maxCycles = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--set") && i + 1 < args.length) {
+                String[] assignment = args[++i].split("=");
+                emulator.setRam(Integer.parseInt(assignment[0]), Integer.parseInt(assignment[1]));
+            } else if (args[i].equals("--dump") && i + 1 < args.length) {
+                String[] range = args[++i].split("-");
+                dumpFrom = Integer.parseInt(range[0]);
+                dumpTo = Integer.parseInt(range[1]);
+            } else if (args[i].equals("--profile") && i + 1 < args.length) {
+                profiledFile = args[++i];
+                emulator.enableProfiling(new Profiler(profiledFile, args[0]));
+            } else if (args[i].equals("--restore") && i + 1 < args.length) {
+                Snapshot.open(args[++i]).restore(emulator);
+            } else if (args[i].equals("--save") && i + 1 < args.length) {
+                savedFile = args[++i];
+            } else if (args[i].equals("--last-write") && i + 1 < args.length) {
+                lastWrite = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--rewind") && i + 1 < args.length) {
+                rewind = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--watch") && i + 1 < args.length) {
+                watched.add(args[++i]);
+            } else if (args[i].equals("--break")) {
+                stop = true;
+            } else if (args[i].equals("--trace") && i + 1 < args.length) {
+                traceFile = args[++i];
+            } else if (args[i].equals("--top") && i + 1 < args.length) {
+                top = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--jit")) {
+                int threshold = BlockCompiler.DEFAULT_HOT_THRESHOLD;
+                if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                    threshold = Integer.parseInt(args[++i]);
+                }
+                emulator.enableJit(threshold);
+            } else {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+
+        for (String watch : watched) {
+            String[] parts = watch.split(":");
+            String[] range = parts[0].split("-");
+            String access = (parts.length > 1) ? parts[1] : "w";
+            int kind = (access.contains("r") ? Watchpoints.READ : 0) |
+                       (access.contains("w") ? Watchpoints.WRITE : 0);
+            int from = Integer.parseInt(range[0]);
+            int to = (range.length > 1) ? Integer.parseInt(range[1]) : from;
+            watchpoints.add(from, to, kind, stop);
+        }
+        if (!watched.isEmpty()) {
+            if (traceFile != null) {
+                watchpoints.traceTo(traceFile);
+            }
+            emulator.watch(watchpoints);
+        }
+        Recorder recorder = (lastWrite >= 0 || rewind >= 0) ? new Recorder(emulator) : null;
+        long start = System.nanoTime();
+        emulator.run(maxCycles);
+        double seconds = (System.nanoTime() - start) / 1e9;
+
+        System.out.printf("%d cycles in %.3f s (%.1f million instructions/s)%n",
+                          emulator.cycles(), seconds, emulator.cycles() / seconds / 1e6);
+        if (emulator.halted()) {
+            System.out.println("Halted at PC=" + emulator.pc());
+        }
+        if (emulator.compiledRegions() > 0) {
+            System.out.println(emulator.compiledRegions() + " regions compiled");
+        }
+        if (!watched.isEmpty()) {
+            watchpoints.close();
+            String last = watchpoints.lastHit();
+            System.out.println(watchpoints.hits() + " watched accesses" +
+                               (last != null ? ", the last at " + last : ""));
+            if (emulator.stopped()) {
+                System.out.println("Stopped at the watchpoint");
+            }
+        }
+        if (recorder != null) {
+            System.out.println(recorder.checkpointCount() + " checkpoints of " +
+                               recorder.savedWords() + " words recorded");
+        }
+        if (lastWrite >= 0) {
+            long cycle = recorder.lastWriteBefore(lastWrite, emulator.cycles());
+            System.out.println("Last write to RAM[" + lastWrite + "]: " +
+                               (cycle >= 0 ? "cycle " + cycle : "none in the log"));
+        }
+        if (rewind >= 0) {
+            recorder.seek(rewind);
+            System.out.println("Rewound to cycle " + rewind);
+        }
+        System.out.println("A=" + emulator.a() + " D=" + emulator.d() + " PC=" + emulator.pc());
+        for (int address = dumpFrom; address <= dumpTo; address++) {
+            System.out.println("RAM[" + address + "] = " + emulator.ram(address));
+        }
+        if (savedFile != null) {
+            Snapshot.save(emulator, savedFile);
+        }
+        if (profiledFile != null) {
+            emulator.profiler.writeCollapsedStacks(
+                profiledFile.replaceAll("\\.asm$", "") + ".folded");
+            System.out.println();
+            System.out.print(emulator.profiler.report(top));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Compares the execution tiers of the Emulator on one program: the interpreter, the JIT
+ * (BlockCompiler) and the interpreter while a Recorder records the run, to measure the
+ * cost of recording. Each tier is warmed up and then timed over fresh emulators (those
+ * of the JIT reuse the regions compiled during the warm-up, see
+ * BlockCompiler.forProgram()); the results are printed as a JSON array, in the format of
+ * AssemblerBenchmark. The final RAM and registers of all tiers must agree, otherwise the
+ * benchmark fails; for the recording this is only checked if the program does not halt,
+ * since the checkpoints change when idle loops are looked for.
+ *
+ * With --lanes, a BatchEmulator also runs that many copies of the program together; its
+ * instructionsPerSecond counts the instructions of all lanes. The batch does not detect
+ * idle loops, so if the program halts it only runs the cycles the interpreter executed
+ * before halting, and not the rest of the budget. Its lanes must then end with the RAM
+ * and registers of the interpreter.
+ *
+ * Usage: java EmulatorBenchmark <file.hack | file.hackbin> [--cycles N] [--iterations K]
+ *                               [--threshold T] [--lanes L] [--output FILE]
+ */
+public class EmulatorBenchmark {
+    private interface Setup {
+        void apply(Emulator emulator);
+    }
+
+    // Final A, D, PC and RAM of the last run of a tier:
+    private static int[] state(Emulator emulator) {
+        int[] state = new int[3 + Emulator.KBD + 1];
+        state[0] = emulator.a();
+        state[1] = emulator.d();
+        state[2] = emulator.pc();
+        for (int address = 0; address <= Emulator.KBD; address++) {
+            state[3 + address] = emulator.ram(address);
+        }
+        return state;
+    }
+
+    private static String measure(String name, short[] program, long cycles, int iterations,
+                                  Setup setup, int[][] finalState) {
+        Emulator emulator = new Emulator(program);
+        setup.apply(emulator);
+        emulator.run(cycles);   // warm-up
+        long elapsed = 0;
+        long executed = 0;   // fewer than cycles * iterations if the program halts
+        for (int i = 0; i < iterations; i++) {
+            emulator = new Emulator(program);
+            setup.apply(emulator);
+            long start = System.nanoTime();
+            executed += emulator.run(cycles);
+            elapsed += System.nanoTime() - start;
+        }
+        finalState[0] = state(emulator);
+
+        double seconds = elapsed / 1e9;
+        return String.format("  {\"benchmark\": \"%s\", \"cycles\": %d, \"iterations\": %d, " +
+                             "\"instructionsPerSecond\": %.0f, \"msPerOp\": %.3f, " +
+                             "\"compiledRegions\": %d}",
+                             name, executed / iterations, iterations, executed / seconds,
+                             1000 * seconds / iterations, emulator.compiledRegions());
+    }
+
+    // Like measure(), for a batch of `lanes` copies; fails if a lane ends in another state:
+    private static String measureBatch(short[] program, long cycles, int iterations, int lanes,
+                                       int[] expected) {
+        new BatchEmulator(program, lanes).run(cycles);   // warm-up
+        BatchEmulator batch = null;
+        long elapsed = 0;
+        long executed = 0;
+        for (int i = 0; i < iterations; i++) {
+            batch = new BatchEmulator(program, lanes);
+            long start = System.nanoTime();
+            executed += batch.run(cycles);
+            elapsed += System.nanoTime() - start;
+        }
+        for (int lane = 0; lane < lanes; lane++) {
+            boolean same = batch.a(lane) == expected[0] && batch.d(lane) == expected[1] &&
+                           batch.pc(lane) == expected[2];
+            for (int address = 0; address <= Emulator.KBD && same; address++) {
+                same = batch.ram(lane, address) == expected[3 + address];
+            }
+            if (!same) {
+                System.out.println("Lane " + lane + " of the batch disagrees with the interpreter");
+                System.exit(1);
+            }
+        }
+
+        double seconds = elapsed / 1e9;
+        return String.format("  {\"benchmark\": \"batch\", \"lanes\": %d, \"cycles\": %d, " +
+                             "\"iterations\": %d, \"instructionsPerSecond\": %.0f, " +
+                             "\"msPerOp\": %.3f}",
+                             lanes, executed / iterations / lanes, iterations,
+                             executed / seconds, 1000 * seconds / iterations);
+    }
+
+    public static void main(String[] args) throws Exception {
+        short[] program = Emulator.load(args[0]);
+        long cycles = 100_000_000;
+        int iterations = 5;
+        int threshold = BlockCompiler.DEFAULT_HOT_THRESHOLD;
+        int lanes = 0;
+        String output = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--cycles") && i + 1 < args.length) {
+                cycles = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--iterations") && i + 1 < args.length) {
+                iterations = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--threshold") && i + 1 < args.length) {
+                threshold = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--lanes") && i + 1 < args.length) {
+                lanes = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--output") && i + 1 < args.length) {
+                output = args[++i];
+            } else {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+        final int hotThreshold = threshold;
+
+        int[][] interpreted = new int[1][];
+        int[][] compiled = new int[1][];
+        int[][] recorded = new int[1][];
+        StringBuilder json = new StringBuilder("[\n");
+        json.append(measure("interpreter", program, cycles, iterations,
+                            emulator -> { }, interpreted)).append(",\n");
+        json.append(measure("jit", program, cycles, iterations,
+                            emulator -> emulator.enableJit(hotThreshold), compiled)).append(",\n");
+        json.append(measure("recording", program, cycles, iterations,
+                            emulator -> new Recorder(emulator), recorded));
+        Emulator reference = new Emulator(program);
+        reference.run(cycles);
+        if (lanes > 0) {
+            json.append(",\n").append(measureBatch(program, reference.cycles(), iterations,
+                                                   lanes, interpreted[0]));
+        }
+        json.append("\n]\n");
+
+        if (!Arrays.equals(interpreted[0], compiled[0])) {
+            System.out.println("The JIT and the interpreter disagree on the final state");
+            System.exit(1);
+        }
+        if (!reference.halted() && !Arrays.equals(interpreted[0], recorded[0])) {
+            System.out.println("The recording and the interpreter disagree on the final state");
+            System.exit(1);
+        }
+        if (output != null) {
+            Files.write(Paths.get(output), json.toString().getBytes(StandardCharsets.UTF_8));
+        } else {
+            System.out.print(json);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes assembled 16-bit instruction words either as the usual `.hack` text
+ * (one line of 16 ASCII bits per word) or packed into a `.hackbin` file, where
+ * each word takes two bytes in big-endian order.
+ */
+public class HackWriter {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private BufferedWriter textWriter;
+    private WritableByteChannel channel;
+    private ByteBuffer buffer;
+    private OutputStream stream;
+    private final char[] line = new char[16];
+
+    public HackWriter(String fileName, boolean binary) throws IOException {
+        if (binary) {
+            channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                                       StandardOpenOption.WRITE,
+                                       StandardOpenOption.TRUNCATE_EXISTING);
+            buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+        } else {
+            textWriter = new BufferedWriter(new FileWriter(fileName), BUFFER_SIZE);
+        }
+    }
+
+    /** Writes to an already open stream, which is flushed but not closed by flush(). */
+    public HackWriter(OutputStream out, boolean binary) {
+        if (binary) {
+            channel = Channels.newChannel(out);
+            buffer = ByteBuffer.allocate(BUFFER_SIZE);
+            stream = out;
+        } else {
+            textWriter = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.US_ASCII),
+                                            BUFFER_SIZE);
+        }
+    }
+
+    public static String extension(boolean binary) {
+        return binary ? ".hackbin" : ".hack";
+    }
+
+    public void write(int word) throws IOException {
+        if (channel != null) {
+            if (buffer.remaining() < 2) {
+                flushBuffer();
+            }
+            buffer.putShort((short) word);
+        } else {
+            // Fill the line from the least significant bit backwards:
+            for (int i = 15; i >= 0; i--) {
+                line[i] = (char) ('0' + (word & 1));
+                word >>>= 1;
+            }
+            textWriter.write(line);
+            textWriter.newLine();
+        }
+    }
+
+    public void write(int[] words, int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            write(words[i]);
+        }
+    }
+
+    private void flushBuffer() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    public void flush() throws IOException {
+        if (channel != null) {
+            flushBuffer();
+            if (stream != null) {
+                stream.flush();
+            }
+        }
+        if (textWriter != null) {
+            textWriter.flush();
+        }
+    }
+
+    public void close() throws IOException {
+        if (channel != null) {
+            flushBuffer();
+            channel.close();
+        }
+        if (textWriter != null) {
+            textWriter.close();
+        }
+    }
+}
@@ -21,13 +21,17 @@ public class Parser {
         if (line == null) {
             return null;
         }
-        line = line.replaceAll("\\s+", "");
-        int commentIndex = line.indexOf("//");
-        if (commentIndex != -1) {
-            return line.substring(0, commentIndex); 
-        } else {
-            return line;
+        StringBuilder result = new StringBuilder(line.length());
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '/' && i + 1 < line.length() && line.charAt(i + 1) == '/') {
+                break;
+            }
+            if (!Character.isWhitespace(c)) {
+                result.append(c);
+            }
         }
+        return result.toString();
     }
 
     public void advance() throws IOException {
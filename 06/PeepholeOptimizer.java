@@ -0,0 +1,90 @@
+import java.util.BitSet;
+
+/**
+ * Removes redundant instructions from an assembled program, within basic blocks:
+ * (1) an A-instruction immediately followed by another A-instruction (its value is
+ *     overwritten before it can be used);
+ * (2) an A-instruction that loads the value A already holds, e.g. the second @SP in
+ *     "@SP, M=M+1, @SP, A=M";
+ * (3) M=D right after D=M (memory already holds that value).
+ * A block starts at every label, since control can arrive there from elsewhere.
+ * Afterwards the program is compacted and every word that holds a ROM address (the
+ * value of a label) is moved to the new address of its target.
+ *
+ * This relies on jump targets being given through labels: a program that computes
+ * ROM addresses from plain numbers must not be optimized.
+ */
+public class PeepholeOptimizer {
+    private static final int D_EQUALS_M = Code.encode("D=M");
+    private static final int M_EQUALS_D = Code.encode("M=D");
+    private static final int UNKNOWN = -1;
+
+    private static boolean isAInstruction(int word) {
+        return (word & 0x8000) == 0;
+    }
+
+    private static boolean writesA(int word) {
+        return (word & 0b100000) != 0;
+    }
+
+    /**
+     * Optimizes program[0..length) in place. Returns, for every old address from 0 to
+     * length, its new address; a removed instruction maps to the next one that is kept,
+     * and the entry at index `length` is the new length of the program.
+     * romAddresses: words whose value is a label's address;
+     * labelTargets: addresses of labels.
+     */
+    public static int[] optimize(int[] program, int length, BitSet romAddresses,
+                                 BitSet labelTargets) {
+        boolean[] removed = new boolean[length];
+        // Value of A, tagged with bit 16 when it is a ROM address, as it may still change:
+        int knownA = UNKNOWN;
+        for (int i = 0; i < length; i++) {
+            int word = program[i];
+            boolean blockStart = labelTargets.get(i);
+            if (blockStart) {
+                knownA = UNKNOWN;
+            }
+
+            if (isAInstruction(word)) {
+                int value = romAddresses.get(i) ? word | 0x10000 : word;
+                if (i + 1 < length && isAInstruction(program[i + 1])) {
+                    removed[i] = true;   // (1)
+                } else if (value == knownA) {
+                    removed[i] = true;   // (2)
+                } else {
+                    knownA = value;
+                }
+            } else {
+                if (word == M_EQUALS_D && !blockStart && i > 0 && !removed[i - 1] &&
+                    program[i - 1] == D_EQUALS_M) {
+                    removed[i] = true;   // (3)
+                }
+                if (writesA(word)) {
+                    knownA = UNKNOWN;
+                }
+            }
+        }
+
+        int[] newAddresses = new int[length + 1];
+        int kept = 0;
+        for (int i = 0; i < length; i++) {
+            newAddresses[i] = kept;
+            if (!removed[i]) {
+                kept++;
+            }
+        }
+        newAddresses[length] = kept;
+
+        for (int i = 0; i < length; i++) {
+            if (!removed[i]) {
+                int word = program[i];
+                if (romAddresses.get(i) && word <= length) {
+                    word = newAddresses[word];
+                }
+                program[newAddresses[i]] = word;
+            }
+        }
+        return newAddresses;
+    }
+}
@@ -0,0 +1,297 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Execution profile of a program run by the Emulator (Emulator.enableProfiling()).
+ * The emulator counts every executed instruction per ROM address in a long[] and
+ * reports each jump instruction to jumped(); the profiler keeps a shadow call stack
+ * from these jumps, so the cycles can be charged to whole call stacks as well.
+ *
+ * ROM addresses are mapped back to the program's .asm file, which is scanned the same
+ * way the Assembler scans it. Labels written by the VM translator give the functions:
+ * a label such as "Main.main" (with a '.' but no '$') is the entry of a Jack function
+ * or method, and a jump there is a call. Labels that merely decorate the name of a
+ * function, such as "LOOP_math.divide" from other translators, are not functions. A
+ * call has returned once a jump finds SP below its value at the entry of the function:
+ * in the VM calling convention the callee's stack starts there (at LCL), and its
+ * return sets SP back to ARG + 1. The .asm file must be the one the ROM was assembled
+ * from; if it was assembled with --optimize, the Assembler's source map of the ROM file
+ * (name.hackmap, or name.hackbinmap for a binary ROM) is needed.
+ *
+ * The source map of the VM translator (name.asmmap, see SourceMap), if it is found next
+ * to the .asm file, takes the report back to the hottest VM commands.
+ *
+ * Results: a top-N report per function and per source line, and the call stacks in the
+ * collapsed format read by flame graph tools ("Sys.init;Main.main;Math.multiply 1234").
+ */
+public class Profiler {
+    private static final String TOP_LEVEL = "(top)";
+
+    private final long[] counts = new long[32768];
+    private final Path directory;
+    private final String fileName;
+    private final SourceMap vmMap;         // .asm line -> VM command, or null
+    private final Map<String, String[]> sources = new HashMap<>();
+    private final int[] romLines;          // ROM address -> line number (from 1)
+    private final int[] romFunctions;      // ROM address -> index in functionNames
+    private final boolean[] functionEntries;
+    private final List<String> functionNames = new ArrayList<>();
+
+    // The call tree: node 0 is the top level, every other node a call of `nodeFunctions`
+    // from `nodeParents`. Cycles are charged to the node of the current call stack.
+    private int[] nodeParents = new int[256];
+    private int[] nodeFunctions = new int[256];
+    private long[] nodeCycles = new long[256];
+    private int nodeCount = 1;
+    private final Map<Long, Integer> children = new HashMap<>();
+    private int node;
+    private long pendingCycles;
+    // SP at the entry of the calls on the shadow stack, innermost last:
+    private int[] entryStackPointers = new int[64];
+    private int depth;
+
+    /** Profiles the ROM file romFileName (for its source map), assembled from asmFileName. */
+    public Profiler(String asmFileName, String romFileName) throws IOException {
+        Path path = Paths.get(asmFileName).toAbsolutePath();
+        directory = path.getParent();
+        fileName = path.getFileName().toString();
+        vmMap = readMap(SourceMap.sidecar(asmFileName));
+        SourceMap romMap = readMap(SourceMap.sidecar(romFileName));
+        romLines = new int[counts.length];
+        romFunctions = new int[counts.length];
+        functionEntries = new boolean[counts.length];
+        functionNames.add(TOP_LEVEL);
+        nodeFunctions[0] = 0;
+
+        List<String> candidates = new ArrayList<>();
+        List<Integer> candidateAddresses = new ArrayList<>();
+        List<Integer> candidateLines = new ArrayList<>();
+        AsmScanner scanner = new AsmScanner(asmFileName);
+        int address = 0;
+        while (scanner.advance() && address < counts.length) {
+            if (scanner.instructionType() == Parser.INSTRUCTION_TYPE.L_INSTRUCTION) {
+                String label = scanner.symbol();
+                if (label.indexOf('.') >= 0 && label.indexOf('$') < 0) {
+                    candidates.add(label);
+                    candidateAddresses.add(address);
+                    candidateLines.add(scanner.lineNumber());
+                }
+                continue;
+            }
+            romLines[address] = scanner.lineNumber();
+            address++;
+        }
+        if (romMap != null) {   // the ROM may have been optimized: trust the map instead
+            Arrays.fill(romLines, 0);
+            for (int i = 0; i < romMap.size() && i < counts.length; i++) {
+                romLines[i] = romMap.line(i);
+            }
+        }
+
+        Set<String> names = new HashSet<>(candidates);
+        for (int i = 0; i < candidates.size(); i++) {
+            String label = candidates.get(i);
+            int underscore = label.indexOf('_');
+            if (underscore >= 0 && names.contains(label.substring(underscore + 1))) {
+                continue;   // decorated name of another function
+            }
+            int entry = candidateAddresses.get(i);
+            if (romMap != null) {
+                // The first instruction after the label (instructions keep their order):
+                entry = 0;
+                while (entry < counts.length - 1 && romLines[entry] != 0 &&
+                       romLines[entry] <= candidateLines.get(i)) {
+                    entry++;
+                }
+            }
+            functionEntries[entry] = true;
+            Arrays.fill(romFunctions, entry, counts.length, functionNames.size());
+            functionNames.add(label);
+        }
+    }
+
+    private static SourceMap readMap(String mapFileName) throws IOException {
+        return Files.exists(Paths.get(mapFileName)) ? SourceMap.read(mapFileName) : null;
+    }
+
+    // The lines of a file next to the .asm file (none if it is missing):
+    private String[] source(String name) throws IOException {
+        String[] lines = sources.get(name);
+        if (lines == null) {
+            Path path = directory.resolve(name);
+            lines = Files.exists(path)
+                ? new String(Files.readAllBytes(path), StandardCharsets.UTF_8).split("\n", -1)
+                : new String[0];
+            sources.put(name, lines);
+        }
+        return lines;
+    }
+
+    /** Executions per ROM address, incremented by the emulator. */
+    public long[] counts() {
+        return counts;
+    }
+
+    /**
+     * Called by the emulator after a jump instruction (taken or not) that left PC at
+     * `address`, with the number of instructions executed since the previous call and
+     * the RAM (for SP): returns from calls are detected first, then a jump to a function
+     * entry is a new call.
+     */
+    public void jumped(int address, long executed, short[] ram) {
+        nodeCycles[node] += pendingCycles + executed;
+        pendingCycles = 0;
+        int sp = ram[0];
+        while (depth > 0 && sp < entryStackPointers[depth - 1]) {
+            depth--;
+            node = nodeParents[node];
+        }
+        // A call pushes a frame; without one, the jump is a loop back to the entry:
+        if (functionEntries[address] && (depth == 0 || sp > entryStackPointers[depth - 1])) {
+            if (depth == entryStackPointers.length) {
+                entryStackPointers = Arrays.copyOf(entryStackPointers, 2 * depth);
+            }
+            entryStackPointers[depth++] = sp;
+            node = child(node, romFunctions[address]);
+        }
+    }
+
+    /** Called at the end of a run with the instructions executed since the last jump. */
+    public void pause(long executed) {
+        pendingCycles += executed;
+    }
+
+    private int child(int parent, int function) {
+        long key = ((long) parent << 32) | function;
+        Integer existing = children.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        if (nodeCount == nodeParents.length) {
+            nodeParents = Arrays.copyOf(nodeParents, 2 * nodeCount);
+            nodeFunctions = Arrays.copyOf(nodeFunctions, 2 * nodeCount);
+            nodeCycles = Arrays.copyOf(nodeCycles, 2 * nodeCount);
+        }
+        nodeParents[nodeCount] = parent;
+        nodeFunctions[nodeCount] = function;
+        children.put(key, nodeCount);
+        return nodeCount++;
+    }
+
+    private String stack(int n) {
+        List<String> frames = new ArrayList<>();
+        for (; n != 0; n = nodeParents[n]) {
+            frames.add(functionNames.get(nodeFunctions[n]));
+        }
+        if (frames.isEmpty()) {
+            return TOP_LEVEL;
+        }
+        Collections.reverse(frames);
+        return String.join(";", frames);
+    }
+
+    /** Writes the cycles of every call stack in the collapsed (folded) stack format. */
+    public void writeCollapsedStacks(String outputFileName) throws IOException {
+        nodeCycles[node] += pendingCycles;
+        pendingCycles = 0;
+        try (PrintWriter out = new PrintWriter(outputFileName, "US-ASCII")) {
+            for (int n = 0; n < nodeCount; n++) {
+                if (nodeCycles[n] > 0) {
+                    out.println(stack(n) + " " + nodeCycles[n]);
+                }
+            }
+        }
+    }
+
+    // Indices 0..count-1 sorted by decreasing value, cut to the first `top`:
+    private static int[] topIndices(long[] values, int top) {
+        Integer[] order = new Integer[values.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, (x, y) -> Long.compare(values[y], values[x]));
+        int size = 0;
+        while (size < Math.min(top, order.length) && values[order[size]] > 0) {
+            size++;
+        }
+        int[] result = new int[size];
+        for (int i = 0; i < size; i++) {
+            result[i] = order[i];
+        }
+        return result;
+    }
+
+    // Adds cycles to the source line `line` of `file`, keyed by "file:line  text":
+    private void charge(Map<String, Long> cycles, String file, int line, long count)
+            throws IOException {
+        String[] lines = source(file);
+        String text = line <= lines.length ? lines[line - 1].trim() : "";
+        cycles.merge(file + ":" + line + "  " + text, count, Long::sum);
+    }
+
+    private static void appendTop(StringBuilder report, String title,
+                                  Map<String, Long> cycles, long total, int top) {
+        if (cycles.isEmpty()) {
+            return;
+        }
+        List<String> keys = new ArrayList<>(cycles.keySet());
+        long[] values = new long[keys.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = cycles.get(keys.get(i));
+        }
+        report.append(String.format("%n%s:%n", title));
+        for (int i : topIndices(values, top)) {
+            report.append(String.format("%14d %6.2f%%  %s%n", values[i],
+                                        100.0 * values[i] / total, keys.get(i)));
+        }
+    }
+
+    /**
+     * Returns the `top` functions and .asm lines that used the most cycles, and the top
+     * VM commands if the source map of the translator is there.
+     */
+    public String report(int top) throws IOException {
+        long total = 0;
+        long[] functionCycles = new long[functionNames.size()];
+        Map<Integer, Long> asmCycles = new HashMap<>();
+        for (int address = 0; address < counts.length; address++) {
+            total += counts[address];
+            functionCycles[romFunctions[address]] += counts[address];
+            if (romLines[address] > 0 && counts[address] > 0) {   // 0: no instruction
+                asmCycles.merge(romLines[address], counts[address], Long::sum);
+            }
+        }
+        Map<String, Long> lineCycles = new HashMap<>();
+        Map<String, Long> vmCycles = new HashMap<>();
+        for (Map.Entry<Integer, Long> entry : asmCycles.entrySet()) {
+            int line = entry.getKey();
+            charge(lineCycles, fileName, line, entry.getValue());
+            if (vmMap == null || line > vmMap.size() || vmMap.line(line - 1) == 0) {
+                continue;
+            }
+            charge(vmCycles, vmMap.file(line - 1), vmMap.line(line - 1), entry.getValue());
+        }
+
+        StringBuilder report = new StringBuilder();
+        report.append(String.format("%d instructions executed%n%nTop functions:%n", total));
+        for (int f : topIndices(functionCycles, top)) {
+            report.append(String.format("%14d %6.2f%%  %s%n", functionCycles[f],
+                                        100.0 * functionCycles[f] / total, functionNames.get(f)));
+        }
+        appendTop(report, "Top lines", lineCycles, total, top);
+        appendTop(report, "Top VM commands", vmCycles, total, top);
+        return report.toString();
+    }
+}
@@ -0,0 +1,280 @@
+import java.nio.ShortBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Records the execution of an Emulator so that it can be taken back to any earlier
+ * cycle (time-travel debugging).
+ *
+ * Every RAM write is logged, with its cycle and the value it overwrote, in a ring buffer
+ * (the cycles in a long[], address << 16 | old value in an int[]), and marks its 256-word
+ * page dirty.
+ * Every `interval` cycles the recorder takes a sparse checkpoint: the registers and a
+ * copy of the pages written since the previous checkpoint. Changes made from outside the
+ * program (setRam(), the keyboard, reset(), a restored Snapshot) also take a checkpoint,
+ * so that replaying the program from a checkpoint needs no inputs.
+ *
+ * stateAt() rebuilds the RAM of the last checkpoint before the requested cycle, taking
+ * each page from the last checkpoint that saved it, and executes the remaining cycles:
+ * the cost is that of at most `interval` cycles, however far back the cycle is. seek()
+ * puts the recorded emulator itself back, and forgets what was recorded after that cycle.
+ * The log only keeps the most recent writes, for lastWriteBefore().
+ *
+ * While recording, the emulator does not use the JIT. Checkpoints are kept for the whole
+ * run, each holding only the pages written in its interval.
+ */
+public class Recorder {
+    public static final long DEFAULT_INTERVAL = 100_000;
+    public static final int DEFAULT_LOG_SIZE = 1 << 20;
+    private static final int PAGE_SIZE = 256;
+    private static final int PAGES = 32768 / PAGE_SIZE;
+
+    private static class Checkpoint {
+        final long cycle;
+        final int a;
+        final int d;
+        final int pc;
+        final boolean halted;
+        final int[] pages;     // the pages saved, in increasing order
+        final short[] words;   // their contents, PAGE_SIZE words each
+
+        Checkpoint(long cycle, int a, int d, int pc, boolean halted, int[] pages, short[] words) {
+            this.cycle = cycle;
+            this.a = a;
+            this.d = d;
+            this.pc = pc;
+            this.halted = halted;
+            this.pages = pages;
+            this.words = words;
+        }
+    }
+
+    private final Emulator emulator;
+    private final short[] program;
+    private final long interval;
+    private final long[] logCycles;
+    private final int[] logWrites;   // address << 16 | old value
+    private long logPosition;   // number of entries ever logged, minus those forgotten
+    private final long[] dirtyPages = new long[PAGES / 64];
+    private final List<Checkpoint> checkpoints = new ArrayList<>();
+    // For every page, the indices in `checkpoints` of the checkpoints that saved it:
+    private final int[][] pageHistory = new int[PAGES][];
+    private final int[] pageHistorySizes = new int[PAGES];
+
+    public Recorder(Emulator emulator, long interval, int logSize) {
+        if (interval <= 0 || interval > Integer.MAX_VALUE || Integer.bitCount(logSize) != 1) {
+            throw new IllegalArgumentException("Invalid interval " + interval +
+                                               " or log size " + logSize);
+        }
+        this.emulator = emulator;
+        this.program = emulator.program();
+        this.interval = interval;
+        this.logCycles = new long[logSize];
+        this.logWrites = new int[logSize];
+        for (int page = 0; page < PAGES; page++) {
+            pageHistory[page] = new int[4];
+        }
+        Arrays.fill(dirtyPages, -1L);   // the first checkpoint saves the whole RAM
+        checkpoint();
+        emulator.record(this);
+    }
+
+    public Recorder(Emulator emulator) {
+        this(emulator, DEFAULT_INTERVAL, DEFAULT_LOG_SIZE);
+    }
+
+    /** The cycle at which run() must stop for the next checkpoint. */
+    long nextCheckpoint() {
+        return checkpoints.get(checkpoints.size() - 1).cycle + interval;
+    }
+
+    /** Logs a write of the program, made by the instruction of the given cycle. */
+    void written(long cycle, int address, int old) {
+        int slot = (int) logPosition & (logCycles.length - 1);
+        logCycles[slot] = cycle;
+        logWrites[slot] = (address << 16) | (old & 0xFFFF);
+        logPosition++;
+        int page = address / PAGE_SIZE;
+        dirtyPages[page >> 6] |= 1L << page;
+    }
+
+    /**
+     * Called after a change made from outside the program, at the current cycle: a write
+     * to `address` that replaced `old` (address -1 for the registers, PAGES * PAGE_SIZE
+     * for the whole RAM). Whatever was recorded after the current cycle is forgotten.
+     */
+    void changed(int address, int old) {
+        truncate(emulator.cycles());
+        if (address >= 32768) {
+            Arrays.fill(dirtyPages, -1L);
+        } else if (address >= 0) {
+            written(emulator.cycles(), address, old);
+        }
+        checkpoint();
+    }
+
+    /** Saves the registers and the dirty pages, at the current cycle. */
+    void checkpoint() {
+        int count = 0;
+        for (long bits : dirtyPages) {
+            count += Long.bitCount(bits);
+        }
+        int[] pages = new int[count];
+        short[] words = new short[count * PAGE_SIZE];
+        int index = checkpoints.size();
+        int saved = 0;
+        for (int page = 0; page < PAGES; page++) {
+            if ((dirtyPages[page >> 6] & (1L << page)) == 0) {
+                continue;
+            }
+            pages[saved] = page;
+            for (int i = 0; i < PAGE_SIZE; i++) {
+                words[saved * PAGE_SIZE + i] = (short) emulator.ram(page * PAGE_SIZE + i);
+            }
+            saved++;
+            if (pageHistorySizes[page] == pageHistory[page].length) {
+                pageHistory[page] = Arrays.copyOf(pageHistory[page], 2 * pageHistorySizes[page]);
+            }
+            pageHistory[page][pageHistorySizes[page]++] = index;
+        }
+        Arrays.fill(dirtyPages, 0);
+        checkpoints.add(new Checkpoint(emulator.cycles(), emulator.a(), emulator.d(),
+                                       emulator.pc(), emulator.halted(), pages, words));
+    }
+
+    // Forgets the checkpoints after `cycle` and the writes of the cycles from `cycle` on.
+    // The first checkpoint is always kept; before it (a Snapshot older than the recording
+    // was restored), the recording starts again, and the next checkpoint saves every page.
+    private void truncate(long cycle) {
+        if (cycle < firstCycle()) {
+            checkpoints.clear();
+            Arrays.fill(pageHistorySizes, 0);
+            logPosition = 0;
+            Arrays.fill(dirtyPages, -1L);
+            return;
+        }
+        long oldest = Math.max(0, logPosition - logCycles.length);
+        while (logPosition > oldest && entryCycle(logPosition - 1) >= cycle) {
+            logPosition--;
+        }
+        if (checkpoints.get(checkpoints.size() - 1).cycle <= cycle) {
+            return;
+        }
+        while (checkpoints.get(checkpoints.size() - 1).cycle > cycle) {
+            Checkpoint last = checkpoints.remove(checkpoints.size() - 1);
+            for (int page : last.pages) {
+                pageHistorySizes[page]--;
+            }
+        }
+        // The pages written between the last checkpoint left and `cycle` must be saved
+        // again, or all of them if the log does not reach back that far:
+        long since = checkpoints.get(checkpoints.size() - 1).cycle;
+        long position = logPosition - 1;
+        while (position >= oldest && entryCycle(position) >= since) {
+            int page = entryAddress(position) / PAGE_SIZE;
+            dirtyPages[page >> 6] |= 1L << page;
+            position--;
+        }
+        if (position < oldest && oldest > 0) {
+            Arrays.fill(dirtyPages, -1L);
+        }
+    }
+
+    private long entryCycle(long position) {
+        return logCycles[(int) position & (logCycles.length - 1)];
+    }
+
+    private int entryAddress(long position) {
+        return (logWrites[(int) position & (logWrites.length - 1)] >> 16) & 0x7FFF;
+    }
+
+    /** The first cycle that can be reached with stateAt() or seek(). */
+    public long firstCycle() {
+        return checkpoints.get(0).cycle;
+    }
+
+    public int checkpointCount() {
+        return checkpoints.size();
+    }
+
+    /** Number of RAM words held by all checkpoints together. */
+    public long savedWords() {
+        long words = 0;
+        for (Checkpoint checkpoint : checkpoints) {
+            words += checkpoint.words.length;
+        }
+        return words;
+    }
+
+    /**
+     * Returns a new emulator, running the same program, in the state the recorded one
+     * was in at the given cycle (between firstCycle() and the current cycle).
+     */
+    public Emulator stateAt(long cycle) {
+        if (cycle < firstCycle() || cycle > emulator.cycles()) {
+            throw new IllegalArgumentException("Cycle " + cycle + " was not recorded (" +
+                                               firstCycle() + "-" + emulator.cycles() + ")");
+        }
+        // The last checkpoint at or before the cycle:
+        int low = 0;
+        int high = checkpoints.size() - 1;
+        while (low < high) {
+            int middle = (low + high + 1) / 2;
+            if (checkpoints.get(middle).cycle <= cycle) {
+                low = middle;
+            } else {
+                high = middle - 1;
+            }
+        }
+        Checkpoint start = checkpoints.get(low);
+
+        short[] ram = new short[PAGES * PAGE_SIZE];
+        for (int page = 0; page < PAGES; page++) {
+            Checkpoint saved = checkpoints.get(lastSaved(page, low));
+            int slot = Arrays.binarySearch(saved.pages, page);
+            System.arraycopy(saved.words, slot * PAGE_SIZE, ram, page * PAGE_SIZE, PAGE_SIZE);
+        }
+        Emulator past = new Emulator(program);
+        past.restore(ShortBuffer.wrap(ram), start.a, start.d, start.pc, start.cycle, start.halted);
+        while (past.cycles() < cycle) {
+            past.step();
+        }
+        return past;
+    }
+
+    // The index of the last checkpoint, up to `index`, that saved the page:
+    private int lastSaved(int page, int index) {
+        int[] history = pageHistory[page];
+        int position = Arrays.binarySearch(history, 0, pageHistorySizes[page], index);
+        return (position >= 0) ? history[position] : history[-position - 2];
+    }
+
+    /**
+     * Puts the recorded emulator back in its state at the given cycle. What was recorded
+     * after it is forgotten, and recording goes on from there.
+     */
+    public void seek(long cycle) {
+        Emulator past = stateAt(cycle);
+        short[] ram = new short[PAGES * PAGE_SIZE];
+        past.copyRamTo(ShortBuffer.wrap(ram));
+        // Through restore(), which calls changed() and so truncates the recording:
+        emulator.restore(ShortBuffer.wrap(ram), past.a(), past.d(), past.pc(), past.cycles(),
+                         past.halted());
+    }
+
+    /**
+     * Returns the cycle of the last write to the address before the given cycle, or -1 if
+     * there is none in the log (which only keeps the most recent writes).
+     */
+    public long lastWriteBefore(int address, long cycle) {
+        long oldest = Math.max(0, logPosition - logCycles.length);
+        for (long position = logPosition - 1; position >= oldest; position--) {
+            long entryCycle = entryCycle(position);
+            if (entryCycle < cycle && entryAddress(position) == address) {
+                return entryCycle;
+            }
+        }
+        return -1;
+    }
+}
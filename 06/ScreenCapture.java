@@ -0,0 +1,189 @@
+import java.awt.image.BufferedImage;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import javax.imageio.ImageIO;
+
+/**
+ * Records the screen of an Emulator (the 8K words at 16384-24575, 256 rows of 32 words)
+ * without a display, one frame every `interval` cycles. The emulator marks the rows it
+ * writes in a bitset (Emulator.trackScreenWrites()); at each frame only those rows are
+ * compared with the previous frame, and only the rows that really changed are encoded.
+ * Frames without changes produce no output.
+ *
+ * Two outputs are possible:
+ * - PNG files, FRAME_cycles.png in a directory, of the full 512x256 screen, one per
+ *   frame that changed; the image is kept between frames and updated row by row.
+ * - A raw delta stream: the magic "HSCR" and a version byte, then per frame the cycle
+ *   count (long), the number of changed rows (short) and for each of them its index
+ *   (short) and its 32 words, big-endian as written by DataOutputStream. The first frame
+ *   holds every row.
+ *
+ * A pixel is black if its bit is 1; bit 0 of a word is its leftmost pixel.
+ */
+public class ScreenCapture {
+    public static final int WIDTH = 512;
+    public static final int HEIGHT = 256;
+    private static final int WORDS_PER_ROW = WIDTH / 16;
+    private static final int VERSION = 1;
+
+    private final Emulator emulator;
+    private final long interval;
+    private final long[] dirtyRows = new long[HEIGHT / 64];
+    private final short[] frame = new short[HEIGHT * WORDS_PER_ROW];   // the last frame
+    private final int[] changedRows = new int[HEIGHT];
+    private File pngDirectory;
+    private BufferedImage image;
+    private DataOutputStream raw;
+    private int frames;
+
+    public ScreenCapture(Emulator emulator, long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Frame interval must be positive: " + interval);
+        }
+        this.emulator = emulator;
+        this.interval = interval;
+        Arrays.fill(dirtyRows, -1L);   // the first frame holds every row
+        emulator.trackScreenWrites(dirtyRows);
+    }
+
+    /** Writes each frame that changed to a PNG file in the given directory. */
+    public void writePngs(String directory) {
+        pngDirectory = new File(directory);
+        pngDirectory.mkdirs();
+        IndexColorModel colors = new IndexColorModel(1, 2, new byte[] { -1, 0 },
+                                                     new byte[] { -1, 0 }, new byte[] { -1, 0 });
+        image = new BufferedImage(WIDTH, HEIGHT, BufferedImage.TYPE_BYTE_BINARY, colors);
+    }
+
+    /** Writes the changed rows of each frame to a raw delta stream in the given file. */
+    public void writeRaw(String fileName) throws IOException {
+        raw = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(fileName)));
+        raw.writeBytes("HSCR");
+        raw.writeByte(VERSION);
+    }
+
+    /**
+     * Runs the emulator for at most `maxCycles` cycles, capturing a frame after every
+     * `interval` cycles and at the end. Returns the number of cycles executed.
+     */
+    public long run(long maxCycles) throws IOException {
+        long executed = 0;
+        while (executed < maxCycles && !emulator.halted()) {
+            long slice = interval - emulator.cycles() % interval;
+            executed += emulator.run(Math.min(slice, maxCycles - executed));
+            capture();
+        }
+        return executed;
+    }
+
+    /** Number of frames captured that had changes. */
+    public int frames() {
+        return frames;
+    }
+
+    // Compares the dirty rows with the last frame and writes the ones that changed:
+    private void capture() throws IOException {
+        int changed = 0;
+        for (int row = 0; row < HEIGHT; row++) {
+            if ((dirtyRows[row >> 6] & (1L << row)) == 0) {
+                continue;
+            }
+            boolean same = true;
+            int start = row * WORDS_PER_ROW;
+            for (int i = 0; i < WORDS_PER_ROW; i++) {
+                short word = (short) emulator.ram(Emulator.SCREEN + start + i);
+                if (word != frame[start + i]) {
+                    frame[start + i] = word;
+                    same = false;
+                }
+            }
+            if (!same || frames == 0) {
+                changedRows[changed++] = row;
+            }
+        }
+        Arrays.fill(dirtyRows, 0);
+        if (changed == 0) {
+            return;
+        }
+        frames++;
+        if (raw != null) {
+            raw.writeLong(emulator.cycles());
+            raw.writeShort(changed);
+            for (int i = 0; i < changed; i++) {
+                raw.writeShort(changedRows[i]);
+                int start = changedRows[i] * WORDS_PER_ROW;
+                for (int j = 0; j < WORDS_PER_ROW; j++) {
+                    raw.writeShort(frame[start + j]);
+                }
+            }
+        }
+        if (image != null) {
+            WritableRaster raster = image.getRaster();
+            for (int i = 0; i < changed; i++) {
+                int row = changedRows[i];
+                for (int x = 0; x < WIDTH; x++) {
+                    int word = frame[row * WORDS_PER_ROW + x / 16];
+                    raster.setSample(x, row, 0, (word >> (x % 16)) & 1);
+                }
+            }
+            ImageIO.write(image, "png",
+                          new File(pngDirectory, String.format("frame_%012d.png", emulator.cycles())));
+        }
+    }
+
+    public void close() throws IOException {
+        if (raw != null) {
+            raw.close();
+        }
+    }
+
+    // Usage: java ScreenCapture <file.hack | file.hackbin> [--cycles N] [--interval C]
+    //                           [--restore SNAPSHOT] [--png DIRECTORY] [--raw FILE]
+    // Runs the program for N cycles (default 10000000), starting from the snapshot if one
+    // is given, and captures the screen every C cycles (default 1000000) as PNG files in
+    // DIRECTORY and/or as a raw delta stream in FILE.
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        Emulator emulator = new Emulator(Emulator.load(args[0]));
+        long maxCycles = 10_000_000;
+        long interval = 1_000_000;
+        String pngDirectory = null;
+        String rawFile = null;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--cycles") && i + 1 < args.length) {
+                maxCycles = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--interval") && i + 1 < args.length) {
+                interval = Long.parseLong(args[++i]);
+            } else if (args[i].equals("--restore") && i + 1 < args.length) {
+                Snapshot.open(args[++i]).restore(emulator);
+            } else if (args[i].equals("--png") && i + 1 < args.length) {
+                pngDirectory = args[++i];
+            } else if (args[i].equals("--raw") && i + 1 < args.length) {
+                rawFile = args[++i];
+            } else {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+
+        ScreenCapture capture = new ScreenCapture(emulator, interval);
+        if (pngDirectory != null) {
+            capture.writePngs(pngDirectory);
+        }
+        if (rawFile != null) {
+            capture.writeRaw(rawFile);
+        }
+        long start = System.nanoTime();
+        long executed = capture.run(maxCycles);
+        capture.close();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.printf("%d cycles in %.3f s, %d frames with changes%n",
+                          executed, seconds, capture.frames());
+    }
+}
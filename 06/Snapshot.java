@@ -0,0 +1,107 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The complete state of an Emulator (RAM, A, D, PC, cycle count) in a memory-mapped
+ * file, e.g. taken after the OS initialization of a program, so that tests can start
+ * from there instead of running Sys.init again.
+ *
+ * A Snapshot opened with open() maps the file read-only and never changes, so one
+ * instance can be shared by any number of emulators, also from several threads: each
+ * restore() copies the 64 KB of RAM into the emulator's own array, which then is the
+ * emulator's private copy to write to. The snapshot remembers a checksum of the ROM and
+ * can only be restored into an emulator running the same program.
+ *
+ * File layout (little-endian): the magic "HSNP", the version, the ROM checksum, the
+ * program size, A, D, PC, a flags word (bit 0: halted) and the cycle count, padded to
+ * HEADER_SIZE bytes, then the 32K words of RAM.
+ */
+public class Snapshot {
+    private static final int MAGIC = 0x504E5348;   // "HSNP"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 64;
+    private static final int RAM_WORDS = 32768;
+    private static final int FILE_SIZE = HEADER_SIZE + 2 * RAM_WORDS;
+
+    private final ByteBuffer buffer;   // the mapped file, read-only
+
+    private Snapshot(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /** Writes the current state of the emulator to the given file. */
+    public static void save(Emulator emulator, String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName),
+                 StandardOpenOption.CREATE, StandardOpenOption.READ,
+                 StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+            mapped.order(ByteOrder.LITTLE_ENDIAN);
+            mapped.putInt(MAGIC).putInt(VERSION)
+                  .putInt(emulator.romChecksum()).putInt(emulator.programSize())
+                  .putInt(emulator.a()).putInt(emulator.d()).putInt(emulator.pc())
+                  .putInt(emulator.halted() ? 1 : 0).putLong(emulator.cycles());
+            mapped.position(HEADER_SIZE);
+            emulator.copyRamTo(mapped.asShortBuffer());
+            mapped.force();
+        }
+    }
+
+    /** Maps a snapshot file written by save(). */
+    public static Snapshot open(String fileName) throws IOException {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            if (channel.size() != FILE_SIZE) {
+                throw new IOException("Not an emulator snapshot: " + fileName);
+            }
+            // The mapping stays valid after the channel is closed:
+            ByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, FILE_SIZE)
+                                       .order(ByteOrder.LITTLE_ENDIAN);
+            if (mapped.getInt(0) != MAGIC || mapped.getInt(4) != VERSION) {
+                throw new IOException("Not an emulator snapshot: " + fileName);
+            }
+            return new Snapshot(mapped);
+        }
+    }
+
+    public int a() {
+        return buffer.getInt(16);
+    }
+
+    public int d() {
+        return buffer.getInt(20);
+    }
+
+    public int pc() {
+        return buffer.getInt(24);
+    }
+
+    public boolean halted() {
+        return (buffer.getInt(28) & 1) != 0;
+    }
+
+    public long cycles() {
+        return buffer.getLong(32);
+    }
+
+    public int ram(int address) {
+        return buffer.getShort(HEADER_SIZE + 2 * address);
+    }
+
+    /** Puts the emulator in the state of the snapshot; it must run the same program. */
+    public void restore(Emulator emulator) {
+        if (buffer.getInt(8) != emulator.romChecksum() ||
+            buffer.getInt(12) != emulator.programSize()) {
+            throw new IllegalArgumentException("Snapshot was taken with another program");
+        }
+        // A view of its own, so that restores in several threads do not share a position:
+        ShortBuffer ram = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+                                .position(HEADER_SIZE).slice()
+                                .order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+        emulator.restore(ram, a(), d(), pc(), cycles(), halted());
+    }
+}
@@ -0,0 +1,163 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps each line (or ROM word) of a generated file back to the source file and line it
+ * was produced from: the Assembler maps ROM addresses to .asm lines, and the VM
+ * translator .asm lines to .vm lines. Entry i describes ROM address i, or line i + 1 of
+ * a text file; line 0 means there is no source line.
+ *
+ * The map is stored next to the generated file, in a sidecar named after it with "map"
+ * appended (Prog.hack -> Prog.hackmap). The format is compact: the magic "SMAP", a
+ * version byte, the number of source files and their names, the number of entries, and
+ * then one varint per entry holding the zigzag-encoded difference to the previous line,
+ * shifted left by one; its low bit is set when the source file changes, and the index
+ * of the new file follows as another varint.
+ */
+public class SourceMap {
+    private static final byte[] MAGIC = { 'S', 'M', 'A', 'P' };
+    private static final int VERSION = 1;
+
+    private final List<String> files = new ArrayList<>();
+    private final Map<String, Integer> fileIndices = new HashMap<>();
+    private int[] entryFiles = new int[1024];
+    private int[] entryLines = new int[1024];
+    private int size;
+
+    public static String sidecar(String generatedFile) {
+        return generatedFile + "map";
+    }
+
+    /** Appends the entry of the next line or word: produced from `line` of `file`. */
+    public void add(String file, int line) {
+        Integer index = fileIndices.get(file);
+        if (index == null) {
+            index = files.size();
+            files.add(file);
+            fileIndices.put(file, index);
+        }
+        if (size == entryLines.length) {
+            entryFiles = Arrays.copyOf(entryFiles, 2 * size);
+            entryLines = Arrays.copyOf(entryLines, 2 * size);
+        }
+        entryFiles[size] = index;
+        entryLines[size] = line;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public String file(int index) {
+        return files.get(entryFiles[index]);
+    }
+
+    public int line(int index) {
+        return entryLines[index];
+    }
+
+    /**
+     * Moves the entries to the addresses given by the PeepholeOptimizer: entry i goes to
+     * newAddresses[i], and is dropped if the instruction was removed.
+     */
+    public void retain(int[] newAddresses) {
+        int kept = 0;
+        for (int i = 0; i < size && i + 1 < newAddresses.length; i++) {
+            if (newAddresses[i + 1] > newAddresses[i]) {
+                entryFiles[newAddresses[i]] = entryFiles[i];
+                entryLines[newAddresses[i]] = entryLines[i];
+                kept++;
+            }
+        }
+        size = kept;
+    }
+
+    private static void writeVarint(ByteArrayOutputStream out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.write((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    public void write(String fileName) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(size + 256);
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(VERSION);
+        writeVarint(out, files.size());
+        for (String file : files) {
+            byte[] name = file.getBytes(StandardCharsets.UTF_8);
+            writeVarint(out, name.length);
+            out.write(name, 0, name.length);
+        }
+        writeVarint(out, size);
+        int file = 0;
+        int line = 0;
+        for (int i = 0; i < size; i++) {
+            int delta = entryLines[i] - line;
+            int zigzag = (delta << 1) ^ (delta >> 31);
+            boolean fileChanged = entryFiles[i] != file;
+            writeVarint(out, (zigzag << 1) | (fileChanged ? 1 : 0));
+            if (fileChanged) {
+                writeVarint(out, entryFiles[i]);
+            }
+            file = entryFiles[i];
+            line = entryLines[i];
+        }
+        Files.write(Paths.get(fileName), out.toByteArray());
+    }
+
+    public static SourceMap read(String fileName) throws IOException {
+        byte[] bytes = Files.readAllBytes(Paths.get(fileName));
+        if (bytes.length < 5 || !Arrays.equals(bytes, 0, 4, MAGIC, 0, 4) ||
+            bytes[4] != VERSION) {
+            throw new IOException("Not a source map: " + fileName);
+        }
+        int[] position = { 5 };
+        SourceMap map = new SourceMap();
+        int fileCount = readVarint(bytes, position);
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < fileCount; i++) {
+            int length = readVarint(bytes, position);
+            names.add(new String(bytes, position[0], length, StandardCharsets.UTF_8));
+            position[0] += length;
+        }
+        int entries = readVarint(bytes, position);
+        int file = 0;
+        int line = 0;
+        for (int i = 0; i < entries; i++) {
+            int value = readVarint(bytes, position);
+            if ((value & 1) != 0) {
+                file = readVarint(bytes, position);
+            }
+            int zigzag = value >>> 1;
+            line += (zigzag >>> 1) ^ -(zigzag & 1);
+            map.add(names.get(file), line);
+        }
+        return map;
+    }
+
+    private static int readVarint(byte[] bytes, int[] position) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            if (position[0] >= bytes.length) {
+                throw new IOException("Truncated source map");
+            }
+            int b = bytes[position[0]++];
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint in source map");
+    }
+}
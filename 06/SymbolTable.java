@@ -0,0 +1,183 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Symbol table of the assembler, mapping symbols to addresses without boxing.
+ * Symbols are looked up directly from a range of bytes (as given by AsmScanner)
+ * in an open-addressing table with linear probing. Each slot caches the hash of
+ * its key, so the bytes are only compared when the hashes match.
+ */
+public class SymbolTable {
+    private static final int FIRST_VARIABLE_ADDRESS = 16;
+
+    // The predefined symbols, built once and copied for every file:
+    private static final SymbolTable PREDEFINED = new SymbolTable(64);
+    static {
+        for (int i = 0; i <= 15; i++) {
+            PREDEFINED.put("R" + i, i);
+        }
+        PREDEFINED.put("SCREEN", 16384);
+        PREDEFINED.put("KBD", 24576);
+        PREDEFINED.put("SP", 0);
+        PREDEFINED.put("LCL", 1);
+        PREDEFINED.put("ARG", 2);
+        PREDEFINED.put("THIS", 3);
+        PREDEFINED.put("THAT", 4);
+    }
+
+    private byte[][] keys;
+    private int[] hashes;
+    private int[] values;
+    private boolean[] labels;
+    private int size;
+    private int nextVariable = FIRST_VARIABLE_ADDRESS;
+
+    private SymbolTable(int capacity) {
+        keys = new byte[capacity][];
+        hashes = new int[capacity];
+        values = new int[capacity];
+        labels = new boolean[capacity];
+    }
+
+    /**
+     * Returns a new table holding the predefined symbols (R0-R15, SCREEN, KBD, SP,
+     * LCL, ARG, THIS, THAT), with room for about `expectedSymbols` more entries.
+     */
+    public static SymbolTable withPredefinedSymbols(int expectedSymbols) {
+        int capacity = PREDEFINED.keys.length;
+        while (capacity < 2 * (PREDEFINED.size + expectedSymbols)) {
+            capacity *= 2;
+        }
+        if (capacity == PREDEFINED.keys.length) {
+            SymbolTable table = new SymbolTable(0);
+            table.keys = PREDEFINED.keys.clone();   // the key arrays themselves are never modified
+            table.hashes = PREDEFINED.hashes.clone();
+            table.values = PREDEFINED.values.clone();
+            table.labels = PREDEFINED.labels.clone();
+            table.size = PREDEFINED.size;
+            return table;
+        }
+        SymbolTable table = new SymbolTable(capacity);
+        table.insertAll(PREDEFINED);
+        return table;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Number of variables allocated so far by resolveVariable():
+    public int variableCount() {
+        return nextVariable - FIRST_VARIABLE_ADDRESS;
+    }
+
+    private static int hash(byte[] buffer, int start, int end) {
+        int h = 0;
+        for (int i = start; i < end; i++) {
+            h = 31 * h + buffer[i];
+        }
+        return h ^ (h >>> 16);
+    }
+
+    // Slot holding the given key, or the empty slot where it would be inserted:
+    private int find(byte[] buffer, int start, int end, int h) {
+        int mask = keys.length - 1;
+        int slot = h & mask;
+        while (keys[slot] != null) {
+            if (hashes[slot] == h && Arrays.equals(keys[slot], 0, keys[slot].length,
+                                                   buffer, start, end)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /** Returns the address of the symbol in buffer[start..end), or -1 if it is unknown. */
+    public int get(byte[] buffer, int start, int end) {
+        int slot = find(buffer, start, end, hash(buffer, start, end));
+        return (keys[slot] != null) ? values[slot] : -1;
+    }
+
+    public void put(byte[] buffer, int start, int end, int address) {
+        int h = hash(buffer, start, end);
+        int slot = find(buffer, start, end, h);
+        if (keys[slot] == null) {
+            keys[slot] = Arrays.copyOfRange(buffer, start, end);
+            hashes[slot] = h;
+            size++;
+        }
+        values[slot] = address;
+        if (2 * size > keys.length) {
+            grow();
+        }
+    }
+
+    // Same as put(), but also remembers that the symbol is a label (see isLabel()):
+    public void defineLabel(byte[] buffer, int start, int end, int address) {
+        put(buffer, start, end, address);
+        labels[find(buffer, start, end, hash(buffer, start, end))] = true;
+    }
+
+    // Whether the symbol was defined by a label, i.e. its value is a ROM address:
+    public boolean isLabel(byte[] buffer, int start, int end) {
+        int slot = find(buffer, start, end, hash(buffer, start, end));
+        return keys[slot] != null && labels[slot];
+    }
+
+    public void put(String symbol, int address) {
+        byte[] bytes = symbol.getBytes(StandardCharsets.US_ASCII);
+        put(bytes, 0, bytes.length, address);
+    }
+
+    /**
+     * Returns the address of the symbol in buffer[start..end) with a single lookup,
+     * allocating the next free variable address (starting at 16) if it is unknown.
+     */
+    public int resolveVariable(byte[] buffer, int start, int end) {
+        int h = hash(buffer, start, end);
+        int slot = find(buffer, start, end, h);
+        if (keys[slot] != null) {
+            return values[slot];
+        }
+        keys[slot] = Arrays.copyOfRange(buffer, start, end);
+        hashes[slot] = h;
+        values[slot] = nextVariable;
+        size++;
+        if (2 * size > keys.length) {
+            grow();
+        }
+        return nextVariable++;
+    }
+
+    private void grow() {
+        SymbolTable old = new SymbolTable(0);
+        old.keys = keys;
+        old.hashes = hashes;
+        old.values = values;
+        old.labels = labels;
+        keys = new byte[2 * keys.length][];
+        hashes = new int[keys.length];
+        values = new int[keys.length];
+        labels = new boolean[keys.length];
+        size = 0;
+        insertAll(old);
+    }
+
+    private void insertAll(SymbolTable other) {
+        int mask = keys.length - 1;
+        for (int i = 0; i < other.keys.length; i++) {
+            if (other.keys[i] != null) {
+                int slot = other.hashes[i] & mask;
+                while (keys[slot] != null) {
+                    slot = (slot + 1) & mask;
+                }
+                keys[slot] = other.keys[i];
+                hashes[slot] = other.hashes[i];
+                values[slot] = other.values[i];
+                labels[slot] = other.labels[i];
+                size++;
+            }
+        }
+    }
+}
@@ -0,0 +1,607 @@
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs the tests of a tree of project folders through the toolchain in parallel, and
+ * writes the results as a JUnit XML report.
+ *
+ * Every test becomes a chain of jobs, and the jobs of all tests form one DAG:
+ * - a folder with a .tst script for the CPU emulator that loads X.asm is translated
+ *   (if it holds .vm files, with the VM translator of project 8), assembled, run by
+ *   TestScript on the Emulator and compared with its .cmp file;
+ * - a folder with .jack files and the expected .xml output of some of them is analyzed
+ *   (with the JackAnalyzer of project 10) and every .xml file is compared.
+ * There is no stage for the compiler: the CompilationEngine of project 11 still writes
+ * XML, so it produces no .vm files to translate.
+ * The jobs run on a ForkJoinPool, whose idle workers steal queued jobs from busy ones;
+ * a job is queued as soon as the jobs it depends on are done. The translator and the
+ * analyzer run as separate processes, on copies of the sources in a temporary folder;
+ * the assembler and emulator run in the farm itself. Options for the translator (such as
+ * --no-fusion) are passed on to it, so that the same .cmp files can check its output
+ * both with and without them.
+ *
+ * Each job produces an artifact, a set of named files, which is handed to the jobs that
+ * depend on it. With --cache, the artifacts of the translate, analyze and assemble
+ * stages are also kept in an ArtifactCache, keyed by the stage, the tool
+ * (its class files, or the assembler version) and everything the job reads, so that a
+ * job whose inputs did not change is not run again. Emulation always runs.
+ */
+public class TestFarm {
+    private static final String JAVA =
+        Paths.get(System.getProperty("java.home"), "bin", "java").toString();
+    private static final byte[] ASSEMBLER =
+        ("hack-assembler " + Assembler.VERSION).getBytes(StandardCharsets.US_ASCII);
+
+    // Computes the artifact of a job from the artifacts of its dependencies:
+    private interface Action {
+        Map<String, byte[]> run(List<Map<String, byte[]>> inputs) throws Exception;
+    }
+
+    // A check that found a difference: the test failed, not the job.
+    private static class TestFailure extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        TestFailure(String message) {
+            super(message);
+        }
+    }
+
+    private static class Job {
+        final String test;
+        final String stage;
+        final List<Job> dependencies;
+        final byte[] sourceKey;   // what the job reads besides its inputs; null: not cached
+        final Action action;
+        CompletableFuture<Map<String, byte[]>> result;
+        volatile String outcome;  // "passed", "failed" or "error"; null if it never ran
+        volatile String message;
+        volatile boolean cached;
+        volatile long nanos;
+
+        Job(String test, String stage, List<Job> dependencies, byte[] sourceKey, Action action) {
+            this.test = test;
+            this.stage = stage;
+            this.dependencies = dependencies;
+            this.sourceKey = sourceKey;
+            this.action = action;
+        }
+    }
+
+    private final ForkJoinPool pool;
+    private final ArtifactCache cache;   // may be null
+    private final Path workDirectory;
+    private final String translatorPath;
+    private final List<String> translatorOptions;
+    private final String analyzerPath;
+    private final Map<String, byte[]> fingerprints = new HashMap<>();
+    private final List<Job> jobs = new ArrayList<>();
+
+    public TestFarm(int threads, ArtifactCache cache, String translatorPath,
+                    List<String> translatorOptions, String analyzerPath) throws IOException {
+        this.pool = new ForkJoinPool(threads);
+        this.cache = cache;
+        this.workDirectory = Files.createTempDirectory("testfarm");
+        this.translatorPath = translatorPath;
+        this.translatorOptions = List.copyOf(translatorOptions);
+        this.analyzerPath = analyzerPath;
+    }
+
+    private Job add(String test, String stage, byte[] sourceKey, Action action, Job... dependencies) {
+        Job job = new Job(test, stage, List.of(dependencies), sourceKey, action);
+        jobs.add(job);
+        return job;
+    }
+
+    /** Adds the jobs of all tests found in the given folder and its subfolders. */
+    public void discover(Path root) throws IOException {
+        List<Path> folders;
+        try (Stream<Path> paths = Files.walk(root)) {
+            folders = paths.filter(Files::isDirectory).sorted().collect(Collectors.toList());
+        }
+        for (Path folder : folders) {
+            Map<String, byte[]> vmFiles = readFiles(folder, ".vm");
+            Map<String, byte[]> jackFiles = readFiles(folder, ".jack");
+            String test = folder.toString().replace('\\', '/');
+            for (Map.Entry<String, byte[]> script : readFiles(folder, ".tst").entrySet()) {
+                String name = script.getKey();
+                String loaded = TestScript.loadedFile(new String(script.getValue(),
+                                                                 StandardCharsets.US_ASCII));
+                if (name.endsWith("VME.tst") || loaded == null || !loaded.endsWith(".asm")) {
+                    continue;   // a script for the VM emulator or the hardware simulator
+                }
+                addScriptTest(test + "/" + name.substring(0, name.length() - 4), folder,
+                              loaded, vmFiles, script.getValue());
+            }
+            if (!jackFiles.isEmpty()) {
+                addAnalyzerTest(test, folder, jackFiles);
+            }
+        }
+    }
+
+    private void addScriptTest(String test, Path folder, String loaded,
+                               Map<String, byte[]> vmFiles, byte[] script) throws IOException {
+        Job translation = null;
+        byte[] assemblySource = null;
+        if (!vmFiles.isEmpty()) {
+            String name = folder.getFileName().toString();
+            translation = add(test, "translate", translationKey(vmFiles),
+                              inputs -> translate(name, vmFiles));
+        } else {
+            Path assemblyFile = folder.resolve(loaded);
+            if (!Files.exists(assemblyFile)) {
+                return;
+            }
+            assemblySource = Files.readAllBytes(assemblyFile);
+        }
+        final byte[] assembly = assemblySource;
+        String programName = loaded.substring(0, loaded.length() - 4);
+        Job assembled = (translation != null)
+            ? add(test, "assemble", ASSEMBLER, inputs -> assemble(programName, inputs.get(0)),
+                  translation)
+            : add(test, "assemble",
+                  ArtifactCache.key(ASSEMBLER, assembly).getBytes(StandardCharsets.US_ASCII),
+                  inputs -> assemble(programName, Map.of(loaded, assembly)));
+        Job emulated = add(test, "emulate", null, inputs -> {
+            String output = TestScript.run(new String(script, StandardCharsets.US_ASCII),
+                                           program(inputs.get(0)));
+            return Map.of(programName + ".out", output.getBytes(StandardCharsets.US_ASCII));
+        }, assembled);
+
+        Path compareFile = folder.resolve(programName + ".cmp");
+        if (Files.exists(compareFile)) {
+            String expected = new String(Files.readAllBytes(compareFile), StandardCharsets.US_ASCII);
+            add(test, "compare", null, inputs -> {
+                String output = new String(only(inputs.get(0)), StandardCharsets.US_ASCII);
+                String difference = TestScript.compare(output, expected);
+                if (difference != null) {
+                    throw new TestFailure(difference);
+                }
+                return Map.of();
+            }, emulated);
+        }
+    }
+
+    private void addAnalyzerTest(String test, Path folder, Map<String, byte[]> jackFiles)
+            throws IOException {
+        Map<String, byte[]> expected = new TreeMap<>();
+        for (String jackFile : jackFiles.keySet()) {
+            String xmlFile = jackFile.replaceAll("\\.jack$", ".xml");
+            if (Files.exists(folder.resolve(xmlFile))) {
+                expected.put(xmlFile, Files.readAllBytes(folder.resolve(xmlFile)));
+            }
+        }
+        if (expected.isEmpty()) {
+            return;
+        }
+        Job analyzed = add(test, "analyze", key("analyze", jackFiles),
+                           inputs -> runTool(analyzerPath, "JackAnalyzer", jackFiles, ".xml"));
+        for (Map.Entry<String, byte[]> file : expected.entrySet()) {
+            add(test + "/" + file.getKey(), "compare", null, inputs -> {
+                byte[] output = inputs.get(0).get(file.getKey());
+                if (output == null) {
+                    throw new TestFailure("No output " + file.getKey());
+                }
+                String difference = compareText(new String(output, StandardCharsets.UTF_8),
+                                                new String(file.getValue(), StandardCharsets.UTF_8));
+                if (difference != null) {
+                    throw new TestFailure(difference);
+                }
+                return Map.of();
+            }, analyzed);
+        }
+    }
+
+    // The files of a folder with the given extension, by name:
+    private static Map<String, byte[]> readFiles(Path folder, String extension) throws IOException {
+        Map<String, byte[]> files = new TreeMap<>();
+        try (Stream<Path> paths = Files.list(folder)) {
+            for (Path path : paths.collect(Collectors.toList())) {
+                String name = path.getFileName().toString();
+                if (name.endsWith(extension) && Files.isRegularFile(path)) {
+                    files.put(name, Files.readAllBytes(path));
+                }
+            }
+        }
+        return files;
+    }
+
+    // The key of the sources read by a job of the given stage:
+    private static byte[] key(String stage, Map<String, byte[]> files) {
+        List<byte[]> parts = new ArrayList<>();
+        parts.add(stage.getBytes(StandardCharsets.UTF_8));
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            parts.add(file.getKey().getBytes(StandardCharsets.UTF_8));
+            parts.add(file.getValue());
+        }
+        return ArtifactCache.key(parts.toArray(new byte[0][])).getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // The key of the sources of a translation, which also depends on the options:
+    private byte[] translationKey(Map<String, byte[]> vmFiles) {
+        List<String> stage = new ArrayList<>(translatorOptions);
+        stage.add(0, "translate");
+        return key(String.join(" ", stage), vmFiles);
+    }
+
+    private static byte[] only(Map<String, byte[]> artifact) {
+        if (artifact.size() != 1) {
+            throw new IllegalStateException("Expected one file, got " + artifact.keySet());
+        }
+        return artifact.values().iterator().next();
+    }
+
+    private static short[] program(Map<String, byte[]> artifact) {
+        ByteBuffer bytes = ByteBuffer.wrap(only(artifact));
+        short[] program = new short[bytes.remaining() / 2];
+        bytes.asShortBuffer().get(program);
+        return program;
+    }
+
+    // Translates the .vm files to name.asm. With a Sys.vm (or several files), the folder
+    // is translated as a whole, with the bootstrap code; otherwise the single file is.
+    private Map<String, byte[]> translate(String name, Map<String, byte[]> vmFiles)
+            throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory(workDirectory, "translate");
+        try {
+            Path folder = directory.resolve(name);
+            boolean whole = vmFiles.size() > 1 || vmFiles.containsKey("Sys.vm");
+            writeFiles(whole ? folder : directory, vmFiles);
+            String argument = whole ? name : vmFiles.keySet().iterator().next();
+            List<String> arguments = new ArrayList<>(translatorOptions);
+            arguments.add(0, argument);
+            runProcess(directory, translatorPath, "VMTranslator", arguments);
+            Path output = whole ? folder.resolve(name + ".asm")
+                                : directory.resolve(argument.replaceAll("\\.vm$", ".asm"));
+            if (!Files.exists(output)) {
+                throw new IOException("The VM translator wrote no " + output.getFileName());
+            }
+            return Map.of(name + ".asm", Files.readAllBytes(output));
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static Map<String, byte[]> assemble(String name, Map<String, byte[]> assembly)
+            throws IOException {
+        int[] words = new Assembler().assemble(new String(only(assembly), StandardCharsets.US_ASCII));
+        ByteBuffer bytes = ByteBuffer.allocate(2 * words.length);
+        for (int word : words) {
+            bytes.putShort((short) word);
+        }
+        return Map.of(name + ".hackbin", bytes.array());
+    }
+
+    // Runs a tool of another project on a copy of the files and collects its output files:
+    private Map<String, byte[]> runTool(String classpath, String mainClass,
+                                        Map<String, byte[]> files, String outputExtension)
+            throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory(workDirectory, mainClass);
+        try {
+            Path folder = directory.resolve("sources");
+            writeFiles(folder, files);
+            runProcess(directory, classpath, mainClass, List.of("sources"));
+            Map<String, byte[]> output = readFiles(folder, outputExtension);
+            if (output.isEmpty()) {
+                throw new IOException(mainClass + " wrote no " + outputExtension + " files");
+            }
+            return output;
+        } finally {
+            delete(directory);
+        }
+    }
+
+    private static void writeFiles(Path folder, Map<String, byte[]> files) throws IOException {
+        Files.createDirectories(folder);
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            Files.write(folder.resolve(file.getKey()), file.getValue());
+        }
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : paths.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    // Runs `java -cp classpath mainClass arguments...` in the directory. The worker thread
+    // waits in managedBlock(), so that the pool can start another worker meanwhile.
+    private static void runProcess(Path directory, String classpath, String mainClass,
+                                   List<String> arguments)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>(List.of(
+            JAVA, "-cp", Paths.get(classpath).toAbsolutePath().toString(), mainClass));
+        command.addAll(arguments);
+        Process process = new ProcessBuilder(command)
+            .directory(directory.toFile()).redirectErrorStream(true).start();
+        byte[][] output = new byte[1][];
+        IOException[] failure = new IOException[1];
+        ForkJoinPool.managedBlock(new ForkJoinPool.ManagedBlocker() {
+            private boolean done;
+
+            public boolean block() throws InterruptedException {
+                try {
+                    output[0] = process.getInputStream().readAllBytes();
+                } catch (IOException e) {
+                    failure[0] = e;
+                }
+                process.waitFor();
+                done = true;
+                return true;
+            }
+
+            public boolean isReleasable() {
+                return done;
+            }
+        });
+        if (failure[0] != null) {
+            throw failure[0];
+        }
+        if (process.exitValue() != 0) {
+            throw new IOException(mainClass + " exited with " + process.exitValue() + ": " +
+                                  new String(output[0], StandardCharsets.UTF_8).trim());
+        }
+    }
+
+    // Hash of the class files of a tool, part of the cache key of the jobs that run it:
+    private synchronized byte[] fingerprint(String classpath) throws IOException {
+        byte[] fingerprint = fingerprints.get(classpath);
+        if (fingerprint == null) {
+            Map<String, byte[]> classes = readFiles(Paths.get(classpath), ".class");
+            if (classes.isEmpty()) {
+                throw new IOException("No compiled classes in " + classpath);
+            }
+            fingerprint = key("tool", classes);
+            fingerprints.put(classpath, fingerprint);
+        }
+        return fingerprint;
+    }
+
+    // The tool a stage runs, whose class files are part of the cache key, if any:
+    private String tool(String stage) {
+        switch (stage) {
+            case "translate": return translatorPath;
+            case "analyze": return analyzerPath;
+            default: return null;
+        }
+    }
+
+    /**
+     * Compares two text files ignoring spaces and empty lines, as the course's text
+     * comparer does. Returns null if they agree, else the first difference.
+     */
+    static String compareText(String output, String expected) {
+        List<String> actualLines = significantLines(output);
+        List<String> expectedLines = significantLines(expected);
+        for (int i = 0; i < expectedLines.size(); i++) {
+            if (i >= actualLines.size()) {
+                return "Output ends before " + expectedLines.get(i);
+            }
+            if (!actualLines.get(i).equals(expectedLines.get(i))) {
+                return "Expected " + expectedLines.get(i) + " but got " + actualLines.get(i);
+            }
+        }
+        if (actualLines.size() > expectedLines.size()) {
+            return "Unexpected " + actualLines.get(expectedLines.size());
+        }
+        return null;
+    }
+
+    private static List<String> significantLines(String text) {
+        List<String> lines = new ArrayList<>();
+        for (String line : text.split("\\r?\\n")) {
+            String compact = line.replaceAll("\\s+", "");
+            if (!compact.isEmpty()) {
+                lines.add(compact);
+            }
+        }
+        return lines;
+    }
+
+    private CompletableFuture<Map<String, byte[]>> schedule(Job job) {
+        if (job.result == null) {
+            CompletableFuture<?>[] inputs = new CompletableFuture<?>[job.dependencies.size()];
+            for (int i = 0; i < inputs.length; i++) {
+                inputs[i] = schedule(job.dependencies.get(i));
+            }
+            // A failed dependency fails this future too, without running the job:
+            job.result = CompletableFuture.allOf(inputs).thenApplyAsync(done -> execute(job), pool);
+        }
+        return job.result;
+    }
+
+    private Map<String, byte[]> execute(Job job) {
+        long start = System.nanoTime();
+        try {
+            List<Map<String, byte[]>> inputs = new ArrayList<>();
+            for (Job dependency : job.dependencies) {
+                inputs.add(dependency.result.join());
+            }
+            String key = null;
+            if (cache != null && job.sourceKey != null) {
+                List<byte[]> parts = new ArrayList<>();
+                parts.add(job.stage.getBytes(StandardCharsets.UTF_8));
+                parts.add(job.sourceKey);
+                String tool = tool(job.stage);
+                if (tool != null) {
+                    parts.add(fingerprint(tool));
+                }
+                for (Map<String, byte[]> input : inputs) {
+                    parts.add(key("input", input));
+                }
+                key = ArtifactCache.key(parts.toArray(new byte[0][]));
+                Map<String, byte[]> artifact = cache.get(key);
+                if (artifact != null) {
+                    job.cached = true;
+                    job.outcome = "passed";
+                    return artifact;
+                }
+            }
+            Map<String, byte[]> artifact = new TreeMap<>(job.action.run(inputs));
+            if (key != null) {
+                cache.put(key, artifact);
+            }
+            job.outcome = "passed";
+            return artifact;
+        } catch (TestFailure e) {
+            job.outcome = "failed";
+            job.message = e.getMessage();
+            throw new CompletionException(e);
+        } catch (Exception e) {
+            job.outcome = "error";
+            job.message = e.toString();
+            throw new CompletionException(e);
+        } finally {
+            job.nanos = System.nanoTime() - start;
+        }
+    }
+
+    /** Runs all jobs found so far and waits for them. */
+    public void run() throws IOException {
+        List<CompletableFuture<?>> results = new ArrayList<>();
+        for (Job job : jobs) {
+            results.add(schedule(job).exceptionally(failure -> null));
+        }
+        CompletableFuture.allOf(results.toArray(new CompletableFuture<?>[0])).join();
+        pool.shutdown();
+        delete(workDirectory);
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;")
+                   .replace("\"", "&quot;").replaceAll("[\\x00-\\x08\\x0B\\x0C\\x0E-\\x1F]", "?");
+    }
+
+    private long count(String outcome) {
+        return jobs.stream().filter(job -> outcome == null ? job.outcome == null
+                                                           : outcome.equals(job.outcome)).count();
+    }
+
+    /** Writes one test case per job, named after its stage, with the time it took. */
+    public void writeReport(String fileName, double seconds) throws IOException {
+        try (PrintWriter out = new PrintWriter(fileName, "UTF-8")) {
+            out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            out.printf("<testsuite name=\"TestFarm\" tests=\"%d\" failures=\"%d\" errors=\"%d\" " +
+                       "skipped=\"%d\" time=\"%.3f\">%n", jobs.size(), count("failed"),
+                       count("error"), count(null), seconds);
+            for (Job job : jobs) {
+                out.printf("  <testcase classname=\"%s\" name=\"%s\" time=\"%.3f\"",
+                           escape(job.test.replace('/', '.')), job.stage, job.nanos / 1e9);
+                if ("passed".equals(job.outcome)) {
+                    out.println(job.cached ? ">\n    <system-out>cached</system-out>\n  </testcase>"
+                                           : "/>");
+                } else if (job.outcome == null) {
+                    out.println(">\n    <skipped message=\"an earlier stage failed\"/>\n  </testcase>");
+                } else {
+                    String element = job.outcome.equals("failed") ? "failure" : "error";
+                    out.printf(">%n    <%s message=\"%s\"/>%n  </testcase>%n",
+                               element, escape(job.message));
+                }
+            }
+            out.println("</testsuite>");
+        }
+    }
+
+    /** Returns the number of jobs, time and cache hits per stage, and the outcomes. */
+    public String summary() {
+        Map<String, long[]> stages = new LinkedHashMap<>();   // jobs, nanoseconds, cached
+        for (Job job : jobs) {
+            long[] stage = stages.computeIfAbsent(job.stage, name -> new long[3]);
+            stage[0]++;
+            stage[1] += job.nanos;
+            stage[2] += job.cached ? 1 : 0;
+        }
+        StringBuilder summary = new StringBuilder();
+        for (Map.Entry<String, long[]> stage : stages.entrySet()) {
+            long[] totals = stage.getValue();
+            summary.append(String.format("%-10s %5d jobs %10.3f s %5d cached%n", stage.getKey(),
+                                         totals[0], totals[1] / 1e9, totals[2]));
+        }
+        summary.append(String.format("%d passed, %d failed, %d errors, %d skipped%n",
+                                     count("passed"), count("failed"), count("error"), count(null)));
+        for (Job job : jobs) {
+            if (job.outcome != null && !job.outcome.equals("passed")) {
+                summary.append(job.outcome.toUpperCase()).append(' ').append(job.test)
+                       .append(" [").append(job.stage).append("]: ").append(job.message)
+                       .append('\n');
+            }
+        }
+        if (cache != null) {
+            summary.append(cache.report()).append('\n');
+        }
+        return summary.toString();
+    }
+
+    // Usage: java TestFarm <directory>... [--threads N] [--cache DIR] [--report FILE]
+    //                      [--translator CLASSPATH] [--translator-option OPTION]...
+    //                      [--analyzer CLASSPATH]
+    // Finds the tests in the given folders (e.g. 07 08 10 11 12, from the root of the
+    // repository), runs them on N threads (default: one per processor) and writes the
+    // JUnit XML report to FILE (default TEST-farm.xml). The tools are the compiled
+    // VMTranslator and JackAnalyzer in the given class folders (default 08 and 10); each
+    // --translator-option is passed on to the VMTranslator (e.g. --no-fusion). With
+    // --cache DIR, artifacts are kept in DIR and reused while their inputs do not change.
+    public static void main(String[] args) throws IOException {
+        List<Path> roots = new ArrayList<>();
+        int threads = Runtime.getRuntime().availableProcessors();
+        String cacheDirectory = null;
+        String report = "TEST-farm.xml";
+        String translator = "08";
+        List<String> translatorOptions = new ArrayList<>();
+        String analyzer = "10";
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("--threads") && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if (args[i].equals("--cache") && i + 1 < args.length) {
+                cacheDirectory = args[++i];
+            } else if (args[i].equals("--report") && i + 1 < args.length) {
+                report = args[++i];
+            } else if (args[i].equals("--translator") && i + 1 < args.length) {
+                translator = args[++i];
+            } else if (args[i].equals("--translator-option") && i + 1 < args.length) {
+                translatorOptions.add(args[++i]);
+            } else if (args[i].equals("--analyzer") && i + 1 < args.length) {
+                analyzer = args[++i];
+            } else if (args[i].startsWith("--")) {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            } else {
+                roots.add(Paths.get(args[i]));
+            }
+        }
+
+        ArtifactCache cache = (cacheDirectory != null) ? new ArtifactCache(Paths.get(cacheDirectory))
+                                                       : null;
+        TestFarm farm = new TestFarm(threads, cache, translator, translatorOptions, analyzer);
+        for (Path root : roots) {
+            farm.discover(root);
+        }
+        long start = System.nanoTime();
+        farm.run();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        farm.writeReport(report, seconds);
+        System.out.print(farm.summary());
+        System.out.printf("%d jobs in %.3f s on %d threads%n", farm.jobs.size(), seconds, threads);
+        if (farm.count("failed") + farm.count("error") + farm.count(null) > 0) {
+            System.exit(1);
+        }
+    }
+}
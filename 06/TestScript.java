@@ -0,0 +1,240 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs a test script (.tst) of the CPU emulator of the course tools on an Emulator, and
+ * compares its output with the expected output (.cmp).
+ *
+ * The commands used by the tests of projects 4 to 8 are supported: load, output-file,
+ * compare-to, output-list, set (RAM[i], PC, A, D), repeat N { ... }, ticktock (or
+ * tick, tock), output and echo. The program is the one given to run(); load, output-file
+ * and compare-to only name files and are ignored here. Columns are formatted like
+ * "RAM[0]%D2.6.2": a format letter (D, X, B or S), the spaces left of the value, the
+ * width of the value and the spaces right of it.
+ */
+public class TestScript {
+    private static final Pattern TOKEN = Pattern.compile("[{},;]|[^\\s{},;]+");
+    private static final Pattern COLUMN =
+        Pattern.compile("([^%]+)%([DXBS])(\\d+)\\.(\\d+)\\.(\\d+)");
+    private static final Pattern RAM = Pattern.compile("RAM\\[(\\d+)\\]");
+
+    private final List<String> tokens = new ArrayList<>();
+    private final List<String[]> columns = new ArrayList<>();   // name, format, sizes
+    private final StringBuilder output = new StringBuilder();
+    private Emulator emulator;
+    private int position;
+
+    private TestScript(String script) {
+        String code = script.replaceAll("(?s)/\\*.*?\\*/", " ").replaceAll("//[^\\n]*", " ");
+        Matcher matcher = TOKEN.matcher(code);
+        while (matcher.find()) {
+            tokens.add(matcher.group());
+        }
+    }
+
+    /** Returns the name of the file the script loads, or null if it loads none. */
+    public static String loadedFile(String script) {
+        TestScript parsed = new TestScript(script);
+        for (int i = 0; i + 1 < parsed.tokens.size(); i++) {
+            if (parsed.tokens.get(i).equals("load")) {
+                return parsed.tokens.get(i + 1);
+            }
+        }
+        return null;
+    }
+
+    /** Runs the script on a fresh emulator for the program and returns its output. */
+    public static String run(String script, short[] program) {
+        TestScript test = new TestScript(script);
+        test.emulator = new Emulator(program);
+        test.executeBlock();
+        if (test.position < test.tokens.size()) {
+            throw new IllegalArgumentException("Unexpected '" + test.tokens.get(test.position) +
+                                               "' in test script");
+        }
+        return test.output.toString();
+    }
+
+    // Executes commands up to the end of the script or the next unmatched '}':
+    private void executeBlock() {
+        while (position < tokens.size() && !tokens.get(position).equals("}")) {
+            String command = tokens.get(position++);
+            if (command.equals(",") || command.equals(";")) {
+                continue;
+            }
+            List<String> arguments = new ArrayList<>();
+            while (position < tokens.size() && !tokens.get(position).matches("[{},;]")) {
+                arguments.add(tokens.get(position++));
+            }
+            execute(command, arguments);
+        }
+    }
+
+    private void execute(String command, List<String> arguments) {
+        switch (command) {
+            case "load":
+            case "output-file":
+            case "compare-to":
+            case "echo":
+            case "clear-echo":
+            case "tick":
+                break;
+            case "ticktock":
+            case "tock":
+                emulator.run(1);
+                break;
+            case "output-list":
+                columns.clear();
+                StringBuilder header = new StringBuilder("|");
+                for (String argument : arguments) {
+                    Matcher column = COLUMN.matcher(argument);
+                    if (!column.matches()) {
+                        throw new IllegalArgumentException("Invalid output column: " + argument);
+                    }
+                    columns.add(new String[] { column.group(1), column.group(2), column.group(3),
+                                               column.group(4), column.group(5) });
+                    int size = Integer.parseInt(column.group(3)) +
+                               Integer.parseInt(column.group(4)) + Integer.parseInt(column.group(5));
+                    header.append(center(column.group(1), size)).append('|');
+                }
+                output.append(header).append('\n');
+                break;
+            case "output":
+                StringBuilder line = new StringBuilder("|");
+                for (String[] column : columns) {
+                    String value = format(value(column[0]), column[1], Integer.parseInt(column[3]));
+                    line.append(" ".repeat(Integer.parseInt(column[2]))).append(value)
+                        .append(" ".repeat(Integer.parseInt(column[4]))).append('|');
+                }
+                output.append(line).append('\n');
+                break;
+            case "set":
+                if (arguments.size() != 2) {
+                    throw new IllegalArgumentException("Invalid set command: " + arguments);
+                }
+                set(arguments.get(0), parseNumber(arguments.get(1)));
+                break;
+            case "repeat":
+                int count = Integer.parseInt(arguments.get(0));
+                expect("{");
+                int body = position;
+                if (tokens.get(body).equals("ticktock") &&
+                    tokens.get(body + 1).matches("[;,]") && tokens.get(body + 2).equals("}")) {
+                    emulator.run(count);   // the usual "repeat N { ticktock; }" in one run
+                    position = body + 2;
+                } else {
+                    for (int i = 0; i < count; i++) {
+                        position = body;
+                        executeBlock();
+                    }
+                }
+                expect("}");
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported test script command: " + command);
+        }
+    }
+
+    private void expect(String token) {
+        if (position >= tokens.size() || !tokens.get(position).equals(token)) {
+            throw new IllegalArgumentException("Expected '" + token + "' in test script");
+        }
+        position++;
+    }
+
+    private int value(String name) {
+        Matcher ram = RAM.matcher(name);
+        if (ram.matches()) {
+            return emulator.ram(Integer.parseInt(ram.group(1)));
+        }
+        switch (name) {
+            case "PC": return emulator.pc();
+            case "A": return emulator.a();
+            case "D": return emulator.d();
+            case "time": return (int) emulator.cycles();
+            default: throw new IllegalArgumentException("Unknown output variable: " + name);
+        }
+    }
+
+    private void set(String name, int value) {
+        Matcher ram = RAM.matcher(name);
+        if (ram.matches()) {
+            emulator.setRam(Integer.parseInt(ram.group(1)), value);
+            return;
+        }
+        switch (name) {
+            case "PC": emulator.setRegisters(emulator.a(), emulator.d(), value); break;
+            case "A": emulator.setRegisters(value, emulator.d(), emulator.pc()); break;
+            case "D": emulator.setRegisters(emulator.a(), value, emulator.pc()); break;
+            default: throw new IllegalArgumentException("Cannot set " + name);
+        }
+    }
+
+    // Numbers are decimal, or hexadecimal/binary/decimal after %X, %B or %D:
+    private static int parseNumber(String text) {
+        if (text.startsWith("%X")) {
+            return (short) Integer.parseInt(text.substring(2), 16);
+        } else if (text.startsWith("%B")) {
+            return (short) Integer.parseInt(text.substring(2), 2);
+        } else if (text.startsWith("%D")) {
+            return Integer.parseInt(text.substring(2));
+        }
+        return Integer.parseInt(text);
+    }
+
+    private static String format(int value, String format, int width) {
+        String text;
+        switch (format) {
+            case "X": text = String.format("%04X", value & 0xFFFF); break;
+            case "B": text = String.format("%16s", Integer.toBinaryString(value & 0xFFFF))
+                                   .replace(' ', '0'); break;
+            case "S": text = String.valueOf((char) value); break;
+            default:  text = String.valueOf((short) value); break;
+        }
+        if (text.length() > width) {
+            return text.substring(text.length() - width);
+        }
+        return " ".repeat(width - text.length()) + text;
+    }
+
+    private static String center(String text, int size) {
+        if (text.length() >= size) {
+            return text.substring(0, size);
+        }
+        int left = (size - text.length()) / 2;
+        return " ".repeat(left) + text + " ".repeat(size - text.length() - left);
+    }
+
+    /**
+     * Compares an output with the expected one, cell by cell and ignoring spaces; a "*"
+     * cell in the expected output matches anything. Returns null if they agree, else a
+     * description of the first difference.
+     */
+    public static String compare(String output, String expected) {
+        String[] actualLines = output.trim().split("\\r?\\n");
+        String[] expectedLines = expected.trim().split("\\r?\\n");
+        for (int i = 0; i < expectedLines.length; i++) {
+            if (i >= actualLines.length) {
+                return "Line " + (i + 1) + ": missing, expected " + expectedLines[i].trim();
+            }
+            String[] actualCells = actualLines[i].split("\\|", -1);
+            String[] expectedCells = expectedLines[i].split("\\|", -1);
+            boolean same = actualCells.length == expectedCells.length;
+            for (int j = 0; j < expectedCells.length && same; j++) {
+                String cell = expectedCells[j].trim();
+                same = cell.equals("*") || cell.equals(actualCells[j].trim());
+            }
+            if (!same) {
+                return "Line " + (i + 1) + ": expected " + expectedLines[i].trim() +
+                       " but got " + actualLines[i].trim();
+            }
+        }
+        if (actualLines.length > expectedLines.length) {
+            return "Line " + (expectedLines.length + 1) + ": unexpected " +
+                   actualLines[expectedLines.length].trim();
+        }
+        return null;
+    }
+}
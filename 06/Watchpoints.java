@@ -0,0 +1,189 @@
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Watchpoints on ranges of RAM, such as SP/LCL/ARG (0-2) or the free list of the heap,
+ * for an Emulator (see Emulator.watch()). An access to a watched word is counted, may be
+ * written to a trace file and may stop run() right after the instruction that made it.
+ *
+ * The emulator only checks accesses while watchpoints are set, in a loop of its own that
+ * executes single instructions; the interpreter and the JIT are not changed. Each access
+ * is first looked up in a bitmap of the 256-word pages that hold a watched word, so that
+ * accesses to other pages cost a single test.
+ *
+ * The trace is binary and big-endian: the magic "HTRC" and a version byte, then 17 bytes
+ * per access: the cycle (long), the PC of the instruction (short), the address (short),
+ * the kind (byte, READ | WRITE), and the values of the word before and after the
+ * instruction (shorts). It is buffered in memory and written in blocks; main() prints a
+ * trace as text.
+ */
+public class Watchpoints {
+    public static final int READ = 1;
+    public static final int WRITE = 2;
+    private static final int PAGE_SIZE = 256;
+    private static final int VERSION = 1;
+    private static final int RECORD_SIZE = 17;
+
+    private final long[] pages = new long[32768 / PAGE_SIZE / 64];
+    private int[] froms = new int[4];
+    private int[] tos = new int[4];
+    private int[] kinds = new int[4];   // READ and/or WRITE
+    private boolean[] breaks = new boolean[4];
+    private int count;
+    private FileChannel trace;
+    private final ByteBuffer traceBuffer = ByteBuffer.allocate(1 << 16);
+    private long hits;
+    // The last access to a watched word:
+    private long lastCycle;
+    private int lastPc;
+    private int lastAddress;
+    private int lastKind;
+    private int lastOld;
+    private int lastValue;
+
+    /**
+     * Watches the words `from` to `to` (inclusive) for the given kinds of access. If
+     * `stop` is set, an access makes run() return after the instruction that made it.
+     */
+    public void add(int from, int to, int kind, boolean stop) {
+        if (from < 0 || to < from || to >= 32768 || (kind & (READ | WRITE)) == 0) {
+            throw new IllegalArgumentException("Invalid watchpoint " + from + "-" + to);
+        }
+        if (count == froms.length) {
+            froms = Arrays.copyOf(froms, 2 * count);
+            tos = Arrays.copyOf(tos, 2 * count);
+            kinds = Arrays.copyOf(kinds, 2 * count);
+            breaks = Arrays.copyOf(breaks, 2 * count);
+        }
+        froms[count] = from;
+        tos[count] = to;
+        kinds[count] = kind;
+        breaks[count] = stop;
+        count++;
+        for (int page = from / PAGE_SIZE; page <= to / PAGE_SIZE; page++) {
+            pages[page >> 6] |= 1L << page;
+        }
+    }
+
+    /** Writes every access to a watched word to the given trace file. */
+    public void traceTo(String fileName) throws IOException {
+        trace = FileChannel.open(Paths.get(fileName), StandardOpenOption.CREATE,
+                                 StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        traceBuffer.put("HTRC".getBytes(StandardCharsets.US_ASCII)).put((byte) VERSION);
+    }
+
+    private void flushTrace() throws IOException {
+        traceBuffer.flip();
+        while (traceBuffer.hasRemaining()) {
+            trace.write(traceBuffer);
+        }
+        traceBuffer.clear();
+    }
+
+    /** Whether the page of the address holds a watched word. */
+    boolean trapped(int address) {
+        int page = address / PAGE_SIZE;
+        return (pages[page >> 6] & (1L << page)) != 0;
+    }
+
+    /**
+     * Called by the emulator for an access to a trapped page, after the instruction at
+     * `pc` of the given cycle made it. Returns whether run() must stop.
+     */
+    boolean accessed(long cycle, int pc, int address, int kind, int old, int value) {
+        boolean watched = false;
+        boolean stop = false;
+        for (int i = 0; i < count; i++) {
+            if (address >= froms[i] && address <= tos[i] && (kind & kinds[i]) != 0) {
+                watched = true;
+                stop |= breaks[i];
+            }
+        }
+        if (!watched) {
+            return false;
+        }
+        hits++;
+        lastCycle = cycle;
+        lastPc = pc;
+        lastAddress = address;
+        lastKind = kind;
+        lastOld = old;
+        lastValue = value;
+        if (trace != null) {
+            if (traceBuffer.remaining() < RECORD_SIZE) {
+                try {
+                    flushTrace();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            traceBuffer.putLong(cycle).putShort((short) pc).putShort((short) address)
+                       .put((byte) kind).putShort((short) old).putShort((short) value);
+        }
+        return stop;
+    }
+
+    private static String kindName(int kind) {
+        return (kind == READ) ? "read" : (kind == WRITE) ? "write" : "read-write";
+    }
+
+    /** Number of accesses to watched words so far. */
+    public long hits() {
+        return hits;
+    }
+
+    /** A description of the last access to a watched word, or null if there was none. */
+    public String lastHit() {
+        if (hits == 0) {
+            return null;
+        }
+        return String.format("cycle %d, PC=%d %s RAM[%d]: %d -> %d", lastCycle, lastPc,
+                             kindName(lastKind), lastAddress, (short) lastOld, (short) lastValue);
+    }
+
+    public void close() throws IOException {
+        if (trace != null) {
+            flushTrace();
+            trace.close();
+        }
+    }
+
+    // Usage: java Watchpoints TRACE
+    // Prints the accesses of a trace file written by traceTo(), one per line.
+    public static void main(String[] args) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                 new BufferedInputStream(new FileInputStream(args[0])))) {
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (!new String(magic, StandardCharsets.US_ASCII).equals("HTRC")
+                || in.readByte() != VERSION) {
+                throw new IllegalArgumentException(args[0] + " is not a trace file");
+            }
+            while (true) {
+                long cycle;
+                try {
+                    cycle = in.readLong();
+                } catch (EOFException e) {
+                    break;
+                }
+                int pc = in.readShort() & 0xFFFF;
+                int address = in.readShort() & 0xFFFF;
+                int kind = in.readByte();
+                short old = in.readShort();
+                short value = in.readShort();
+                System.out.printf("%d PC=%d %s RAM[%d]: %d -> %d%n",
+                                  cycle, pc, kindName(kind), address, old, value);
+            }
+        }
+    }
+}
@@ -6,15 +6,124 @@ import java.util.HashMap;
 public class CodeWriter {
 
     private BufferedWriter writer;
+    private SourceMap sourceMap;      // null unless enableSourceMap() was called
+    private String sourceFile = "";
+    private int sourceLine;
     private int uniqueLabels;
     private int callCounter;
     private String fileName;
+    private final String targetFile;
     private String currentFunction;
+    // The window of the translator: a push or a comparison is held back until the next
+    // command shows whether the two can be written as one shorter template (see
+    // writeFused()). The held command keeps its own line in the source map.
+    private boolean fusion = true;
+    private String pendingCommand;    // "push", "eq", "gt" or "lt"; null if none
+    private String pendingSegment;
+    private int pendingIndex;
+    private String pendingSourceFile;
+    private int pendingSourceLine;
 
     public CodeWriter(String fileName) throws IOException {
-        writer = new BufferedWriter(new FileWriter(fileName));
+        writer = new BufferedWriter(new FileWriter(fileName)) {
+            // Every line written is recorded in the source map, if there is one:
+            @Override
+            public void write(String text, int offset, int length) throws IOException {
+                super.write(text, offset, length);
+                if (sourceMap != null) {
+                    for (int i = offset; i < offset + length; i++) {
+                        if (text.charAt(i) == '\n') {
+                            sourceMap.add(sourceFile, sourceLine);
+                        }
+                    }
+                }
+            }
+        };
         uniqueLabels = 0;
         this.fileName = fileName;
+        this.targetFile = fileName;
+    }
+
+    /**
+     * Records, for every line of the .asm file, the .vm file and line of the command
+     * it was written for (see setSourceLine()); close() writes the map to name.asmmap.
+     */
+    public void enableSourceMap() {
+        sourceMap = new SourceMap();
+    }
+
+    // The VM command written next comes from this line of this .vm file:
+    public void setSourceLine(String vmFile, int line) {
+        sourceFile = vmFile;
+        sourceLine = line;
+    }
+
+    /** Writes every command with its own template, as before the fused templates. */
+    public void disableFusion() {
+        fusion = false;
+    }
+
+    private void hold(String command, String segment, int index) {
+        pendingCommand = command;
+        pendingSegment = segment;
+        pendingIndex = index;
+        pendingSourceFile = sourceFile;
+        pendingSourceLine = sourceLine;
+    }
+
+    // Writes the held command, if any, with its own template:
+    private void flushPending() throws IOException {
+        if (pendingCommand == null) {
+            return;
+        }
+        String command = pendingCommand;
+        pendingCommand = null;
+        String file = sourceFile;
+        int line = sourceLine;
+        setSourceLine(pendingSourceFile, pendingSourceLine);
+        if (command.equals("push")) {
+            emitPushPop("push", pendingSegment, pendingIndex);
+        } else {
+            emitArithmetic(command);
+        }
+        setSourceLine(file, line);
+    }
+
+    private static boolean isComparison(String command) {
+        return command.equals("eq") || command.equals("gt") || command.equals("lt");
+    }
+
+    private static boolean isBinaryOperation(String command) {
+        return command.equals("add") || command.equals("sub")
+            || command.equals("and") || command.equals("or");
+    }
+
+    /**
+     * Writes the held command followed by `command` as one template, for three common
+     * sequences:
+     * - push constant c, then add, sub, and or or: the top of the stack is updated in
+     *   place (5 instructions, 3 for adding or subtracting 1, instead of 20);
+     * - push segment i, then pop segment j: the value is copied without going through
+     *   the stack;
+     * - eq, gt or lt, then if-goto: the jump is taken on the difference of the operands,
+     *   without pushing and popping the boolean.
+     * The stack ends up as with the separate templates (the words above SP and R13 may
+     * differ). The whole template is mapped to the line of the held command.
+     */
+    private void writeFused(String command, String argument, int index) throws IOException {
+        String file = sourceFile;
+        int line = sourceLine;
+        setSourceLine(pendingSourceFile, pendingSourceLine);
+        String held = pendingCommand;
+        pendingCommand = null;
+        if (command.equals("pop")) {
+            writeCopy(pendingSegment, pendingIndex, argument, index);
+        } else if (command.equals("if-goto")) {
+            writeCompareIf(held, argument);
+        } else {
+            writeConstantOperation(command, pendingIndex);
+        }
+        setSourceLine(file, line);
     }
 
     private static HashMap<String, String> segmentMap = new HashMap<>();
@@ -47,22 +156,30 @@ public class CodeWriter {
         writer.write("@" + label + "\n");
     }
 
-    public void setFileName(String fileName) {
+    public void setFileName(String fileName) throws IOException {
+        flushPending();   // a held static push belongs to the previous file
         this.fileName = fileName;
     }
 
     public void writeLabel(String label) throws IOException {
+        flushPending();
         writer.write("// Create label `" + label + ":\n");
         writer.write("(" + label + ")\n");
     }
 
     public void writeGoTo(String label) throws IOException {
+        flushPending();
         selectLabel(label);
         writer.write("// Go to label `" + label + "` (unconditional goto):\n");
         writer.write("0;JMP\n");
     }
 
     public void writeIf(String label) throws IOException {
+        if (pendingCommand != null && isComparison(pendingCommand)) {
+            writeFused("if-goto", label, 0);
+            return;
+        }
+        flushPending();
         popIntoRegister("D");
         writer.write("// If the value in D is not false, go to `" + label + "` (if-goto):\n");
         selectLabel(label);
@@ -70,6 +187,7 @@ public class CodeWriter {
     }
 
     public void writeFunction(String functionName, int nVars) throws IOException {
+        flushPending();
         currentFunction = functionName;
         writer.write("// Begin definition of function `" + functionName + "`:\n");
         writeLabel(functionName);
@@ -79,6 +197,7 @@ public class CodeWriter {
     }
 
     public void writeCall(String functionName, int nArgs) throws IOException {
+        flushPending();
         // Step 1 - Generate a return label and push it onto the stack:
         String returnLabel = "ret." + callCounter;
         String fullReturnLabel = currentFunction + "$" + returnLabel;
@@ -136,6 +255,7 @@ public class CodeWriter {
 
 
     public void writeReturn() throws IOException {
+        flushPending();
         // Step 1 - Store LCL in a temporary variable (frame):
         writer.write("// Store LCL in a temporary variable (frame):\n");
         writer.write("@LCL\n");
@@ -170,6 +290,20 @@ public class CodeWriter {
     }
 
     public void writeArithmetic(String command) throws IOException {
+        if ("push".equals(pendingCommand) && pendingSegment.equals("constant")
+            && isBinaryOperation(command)) {
+            writeFused(command, null, 0);
+            return;
+        }
+        flushPending();
+        if (fusion && isComparison(command)) {
+            hold(command, null, 0);
+            return;
+        }
+        emitArithmetic(command);
+    }
+
+    private void emitArithmetic(String command) throws IOException {
         // Binary operations:
         if (command.equals("add") || command.equals("sub")
             || command.equals("and") || command.equals("or")) {
@@ -243,60 +377,27 @@ public class CodeWriter {
     }
 
     public void writePushPop(String command, String segment, int index) throws IOException {
+        if (command.equals("pop") && "push".equals(pendingCommand)) {
+            writeFused("pop", segment, index);
+            return;
+        }
+        flushPending();
+        if (fusion && command.equals("push")) {
+            hold(command, segment, index);
+            return;
+        }
+        emitPushPop(command, segment, index);
+    }
+
+    private void emitPushPop(String command, String segment, int index) throws IOException {
         if (command.equals("push")) {
-            if (segment.equals("constant")) {
-                writer.write("// Push a constant into D:\n");
-                writer.write("@" + index + "\n");
-                writer.write("D=A\n");
-            } else if (segment.equals("temp")) {
-                writer.write("// Push from temp segment into D:\n");
-                writer.write("@" + (5 + index) + "\n");  // temp starts at RAM[5]
-                writer.write("D=M\n");
-            } else if (segment.equals("pointer")) {
-                writer.write("// Push from pointer segment (THIS/THAT) into D:\n");
-                if (index == 0) {
-                    writer.write("@THIS\n");
-                } else if (index == 1) {
-                    writer.write("@THAT\n");
-                }
-                writer.write("D=M\n");
-            } else if (segment.equals("static")) {
-                writer.write("// Prepare to push from the static segment into D:\n");
-                writer.write("@" + fileName + "." + index + "\n");
-                writer.write("D=M\n");
-            } else {  // indirect memory access for local, argument, this and that:
-                writer.write("// Prepare to push from local, argument, this or that segment into D:\n");
-                writer.write("@" + segmentMap.get(segment) + "\n");
-                writer.write("D=M\n");
-                writer.write("@" + index + "\n");
-                writer.write("A=D+A\n");
-                writer.write("D=M\n");
-            }
+            loadIntoD(segment, index);
             pushFromRegister("D");
         }
 
         if (command.equals("pop")) {
             writer.write("// Store address of " + segment + " " + index + " in register 13:\n");
-            if (segment.equals("temp")) {
-                writer.write("@" + (5 + index) + "\n");  // temp starts at 5
-                writer.write("D=A\n");
-            } else if (segment.equals("pointer")) {
-                writer.write("// Store address for pointer (THIS/THAT):\n");
-                if (index == 0) {
-                    writer.write("@THIS\n");
-                } else if (index == 1) {
-                    writer.write("@THAT\n");
-                }
-                writer.write("D=A\n");
-            } else if (segment.equals("static")) {
-                writer.write("@" + fileName + "." + index + "\n");
-                writer.write("D=A\n");
-            } else {  // indirect memory access for local, argument, this and that:
-                writer.write("@" + segmentMap.get(segment) + "\n");
-                writer.write("D=M\n");
-                writer.write("@" + index + "\n");
-                writer.write("D=D+A\n");
-            }
+            addressIntoD(segment, index);
             // Store the address temporarily in register 13:
             writer.write("@13\n");
             writer.write("M=D\n");
@@ -307,7 +408,132 @@ public class CodeWriter {
         }
     }
 
+    // Sets D to the value of the given word of a segment:
+    private void loadIntoD(String segment, int index) throws IOException {
+        if (segment.equals("constant")) {
+            writer.write("// Push a constant into D:\n");
+            writer.write("@" + index + "\n");
+            writer.write("D=A\n");
+        } else if (segment.equals("temp")) {
+            writer.write("// Push from temp segment into D:\n");
+            writer.write("@" + (5 + index) + "\n");  // temp starts at RAM[5]
+            writer.write("D=M\n");
+        } else if (segment.equals("pointer")) {
+            writer.write("// Push from pointer segment (THIS/THAT) into D:\n");
+            if (index == 0) {
+                writer.write("@THIS\n");
+            } else if (index == 1) {
+                writer.write("@THAT\n");
+            }
+            writer.write("D=M\n");
+        } else if (segment.equals("static")) {
+            writer.write("// Prepare to push from the static segment into D:\n");
+            writer.write("@" + fileName + "." + index + "\n");
+            writer.write("D=M\n");
+        } else {  // indirect memory access for local, argument, this and that:
+            writer.write("// Prepare to push from local, argument, this or that segment into D:\n");
+            writer.write("@" + segmentMap.get(segment) + "\n");
+            writer.write("D=M\n");
+            writer.write("@" + index + "\n");
+            writer.write("A=D+A\n");
+            writer.write("D=M\n");
+        }
+    }
+
+    // Sets D to the address of the given word of a segment:
+    private void addressIntoD(String segment, int index) throws IOException {
+        if (segment.equals("temp")) {
+            writer.write("@" + (5 + index) + "\n");  // temp starts at 5
+            writer.write("D=A\n");
+        } else if (segment.equals("pointer")) {
+            writer.write("// Store address for pointer (THIS/THAT):\n");
+            if (index == 0) {
+                writer.write("@THIS\n");
+            } else if (index == 1) {
+                writer.write("@THAT\n");
+            }
+            writer.write("D=A\n");
+        } else if (segment.equals("static")) {
+            writer.write("@" + fileName + "." + index + "\n");
+            writer.write("D=A\n");
+        } else {  // indirect memory access for local, argument, this and that:
+            writer.write("@" + segmentMap.get(segment) + "\n");
+            writer.write("D=M\n");
+            writer.write("@" + index + "\n");
+            writer.write("D=D+A\n");
+        }
+    }
+
+    // Instructions that set A to the address of the given word of a segment, without
+    // changing D; null if that takes more than a few instructions:
+    private String directAddress(String segment, int index) {
+        if (segment.equals("temp")) {
+            return "@" + (5 + index) + "\n";
+        } else if (segment.equals("pointer")) {
+            return (index == 0) ? "@THIS\n" : "@THAT\n";
+        } else if (segment.equals("static")) {
+            return "@" + fileName + "." + index + "\n";
+        } else if (index <= 2) {
+            return "@" + segmentMap.get(segment) + "\n" + "A=M\n" + "A=A+1\n".repeat(index);
+        }
+        return null;
+    }
+
+    private void writeConstantOperation(String command, int constant) throws IOException {
+        writer.write("// Apply " + command + " to the top of the stack and the constant " +
+            constant + " (push constant and " + command + "):\n");
+        if (constant == 1 && (command.equals("add") || command.equals("sub"))) {
+            writer.write("@SP\n");
+            writer.write("A=M-1\n");
+            writer.write(command.equals("add") ? "M=M+1\n" : "M=M-1\n");
+            return;
+        }
+        writer.write("@" + constant + "\n");
+        writer.write("D=A\n");
+        writer.write("@SP\n");
+        writer.write("A=M-1\n");
+        if (command.equals("add")) { writer.write("M=D+M\n"); }
+        if (command.equals("sub")) { writer.write("M=M-D\n"); }
+        if (command.equals("and")) { writer.write("M=D&M\n"); }
+        if (command.equals("or"))  { writer.write("M=D|M\n"); }
+    }
+
+    private void writeCopy(String fromSegment, int fromIndex, String toSegment, int toIndex)
+        throws IOException {
+        writer.write("// Copy " + fromSegment + " " + fromIndex + " to " + toSegment + " " +
+            toIndex + " (push and pop):\n");
+        String target = directAddress(toSegment, toIndex);
+        if (target == null) {
+            addressIntoD(toSegment, toIndex);
+            writer.write("@13\n");
+            writer.write("M=D\n");
+            loadIntoD(fromSegment, fromIndex);
+            writer.write("@13\n");
+            writer.write("A=M\n");
+        } else {
+            loadIntoD(fromSegment, fromIndex);
+            writer.write(target);
+        }
+        writer.write("M=D\n");
+    }
+
+    private void writeCompareIf(String comparison, String label) throws IOException {
+        writer.write("// Pop two operands and go to `" + label + "` if " + comparison +
+            " holds (" + comparison + " and if-goto):\n");
+        writer.write("@SP\n");
+        writer.write("AM=M-1\n");
+        writer.write("D=M\n");
+        writer.write("@SP\n");
+        writer.write("AM=M-1\n");
+        writer.write("D=M-D\n");
+        writer.write("@" + label + "\n");
+        if (comparison.equals("eq")) { writer.write("D;JEQ\n"); }
+        if (comparison.equals("gt")) { writer.write("D;JGT\n"); }
+        if (comparison.equals("lt")) { writer.write("D;JLT\n"); }
+    }
+
     public void writeInit() throws IOException {
+        flushPending();
         currentFunction = "Sys.init";
         writer.write("// Bootstrap code, initialize SP to 256 and call Sys.init:\n");
         writer.write("@256\n");
@@ -319,6 +545,7 @@ public class CodeWriter {
 
 
     public void writeFinalInfiniteLoop() throws IOException {
+        flushPending();
         writer.write("// End the program with an infinite loop:\n");
         writer.write("(END_PROGRAM)\n");
         writer.write("@END_PROGRAM\n");
@@ -326,8 +553,12 @@ public class CodeWriter {
     }
 
     public void close() throws IOException {
+        flushPending();
         if (writer != null) {
             writer.close();
         }
+        if (sourceMap != null) {
+            sourceMap.write(SourceMap.sidecar(targetFile));
+        }
     }
 }
\ No newline at end of file
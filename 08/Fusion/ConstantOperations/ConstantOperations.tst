@@ -0,0 +1,20 @@
+// Test file for ConstantOperations.vm, run with and without the --no-fusion option
+// of the VM translator: both translations must produce this output.
+
+load ConstantOperations.asm,
+output-file ConstantOperations.out,
+compare-to ConstantOperations.cmp,
+output-list RAM[0]%D1.6.1 RAM[256]%D1.6.1 RAM[257]%D1.6.1 RAM[258]%D1.6.1
+            RAM[259]%D1.6.1 RAM[260]%D1.6.1 RAM[300]%D1.6.1 RAM[301]%D1.6.1;
+
+set RAM[0] 256,   // stack pointer
+set RAM[1] 300,   // base address of the local segment
+set RAM[2] 400,   // base address of the argument segment
+set RAM[400] 1234,
+set RAM[401] 4096,
+
+repeat 400 {
+  ticktock;
+}
+
+output;
@@ -0,0 +1,28 @@
+// Test file for SegmentCopies.vm, run with and without the --no-fusion option of
+// the VM translator: both translations must produce this output.
+
+load SegmentCopies.asm,
+output-file SegmentCopies.out,
+compare-to SegmentCopies.cmp,
+output-list RAM[0]%D1.6.1 RAM[3]%D1.6.1 RAM[4]%D1.6.1 RAM[256]%D1.6.1
+            RAM[257]%D1.6.1 RAM[300]%D1.6.1 RAM[301]%D1.6.1 RAM[302]%D1.6.1
+            RAM[303]%D1.6.1 RAM[402]%D1.6.1 RAM[405]%D1.6.1 RAM[3000]%D1.6.1
+            RAM[3002]%D1.6.1 RAM[3011]%D1.6.1 RAM[3015]%D1.6.1 RAM[3024]%D1.6.1
+            RAM[3100]%D1.6.1 RAM[5]%D1.6.1 RAM[8]%D1.6.1 RAM[12]%D1.6.1
+            RAM[16]%D1.6.1 RAM[17]%D1.6.1 RAM[18]%D1.6.1;
+
+set RAM[0] 256,    // stack pointer
+set RAM[1] 300,    // base address of the local segment
+set RAM[2] 400,    // base address of the argument segment
+set RAM[3] 3000,   // base address of the this segment
+set RAM[4] 3010,   // base address of the that segment
+set RAM[400] 21,
+set RAM[401] 22,
+set RAM[402] 23,
+set RAM[403] 24,
+
+repeat 600 {
+  ticktock;
+}
+
+output;
@@ -5,6 +5,7 @@ import java.io.IOException;
 public class Parser {
     private BufferedReader reader;
     private String currentLine;
+    private int lineNumber;
 
     public Parser(String filePath) throws IOException {
         reader = new BufferedReader(new FileReader(filePath));
@@ -18,6 +19,7 @@ public class Parser {
     public void advance() throws IOException {
         do {    // Keep reading a new line until we reach an actual instruction or the end:
             currentLine = reader.readLine();
+            lineNumber++;
         } while (currentLine != null &&
                  (currentLine.trim().isEmpty() ||
                   currentLine.trim().startsWith("//")));
@@ -30,6 +32,11 @@ public class Parser {
         }
     }
 
+    // Line of the current command in the .vm file, counted from 1:
+    public int lineNumber() {
+        return lineNumber;
+    }
+
     public String commandType() throws IOException {
         if (currentLine == null) {
             return "C_NULL";
@@ -50,12 +50,35 @@ public class VMTranslator {
         return target;
     }
 
+    // Usage: java VMTranslator <file.vm | directory> [--source-map] [--no-fusion]
+    // With --source-map the .vm file and line of every .asm line is written to the
+    // sidecar name.asmmap (see SourceMap). With --no-fusion every command is translated
+    // on its own, without the fused templates of common sequences (see CodeWriter).
     public static void main(String[] args) throws IOException {
         String source = args[0];
         File[] vmFiles = getAllVMFiles(source);
 
+        boolean sourceMap = false;
+        boolean fusion = true;
+        for (int i = 1; i < args.length; i++) {
+            if (args[i].equals("--source-map")) {
+                sourceMap = true;
+            } else if (args[i].equals("--no-fusion")) {
+                fusion = false;
+            } else {
+                System.out.println("Unknown option: " + args[i]);
+                return;
+            }
+        }
+
         String target = getTargetFilePath(source);
         CodeWriter codeWriter = new CodeWriter(target);
+        if (sourceMap) {
+            codeWriter.enableSourceMap();
+        }
+        if (!fusion) {
+            codeWriter.disableFusion();
+        }
 
         // Bootstrapping code
         if (vmFiles.length > 1 || new File(source).isDirectory()) {
@@ -68,6 +91,7 @@ public class VMTranslator {
             codeWriter.setFileName(fileName);
 
             while (parser.hasMoreLines()) {
+                codeWriter.setSourceLine(file.getName(), parser.lineNumber());
                 String commandType = parser.commandType();
                 if (commandType.equals("C_ARITHMETIC")) {
                     codeWriter.writeArithmetic(parser.arg1());
@@ -92,6 +116,7 @@ public class VMTranslator {
             parser.close();
         }
 
+        codeWriter.setSourceLine("", 0);
         codeWriter.writeFinalInfiniteLoop();
         codeWriter.close();
     }